@@ -0,0 +1,38 @@
+package upenn.junto.bench
+
+import scala.util.Random
+import upenn.junto.config.{Edge, GraphBuilder, Label}
+import upenn.junto.graph.Graph
+
+/**
+ * Deterministic random graphs for the benchmarks: numVertices vertices
+ * with about avgDegree random neighbors each, and a seed label (one of
+ * numLabels) on every tenth vertex.
+ */
+object BenchGraphs {
+
+  val AvgDegree = 10
+  val NumLabels = 10
+
+  def edges (numVertices: Int, seed: Long = 1L): Array[Edge] = {
+    val rand = new Random(seed)
+    Array.tabulate(numVertices * AvgDegree / 2) { i =>
+      val source = i % numVertices
+      var target = rand.nextInt(numVertices)
+      if (target == source)
+        target = (target + 1) % numVertices
+      new Edge("v" + source, "v" + target, 0.5 + rand.nextDouble)
+    }
+  }
+
+  def seeds (numVertices: Int, seed: Long = 1L): Array[Label] = {
+    val rand = new Random(seed)
+    Array.tabulate((numVertices + 9) / 10) { i =>
+      new Label("v" + (10 * i), "L" + rand.nextInt(NumLabels), 1.0)
+    }
+  }
+
+  def graph (numVertices: Int): Graph =
+    GraphBuilder(edges(numVertices), seeds(numVertices))
+
+}
@@ -0,0 +1,35 @@
+package upenn.junto.bench
+
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import upenn.junto.config.{Edge, GraphBuilder, Label}
+import upenn.junto.graph.Graph
+
+/**
+ * Building a graph with GraphBuilder from in-memory edges and seeds,
+ * including the random walk probabilities.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class GraphBuilderBench {
+
+  @Param(Array("1000", "10000", "100000"))
+  var numVertices: Int = _
+
+  var edges: Array[Edge] = _
+  var seeds: Array[Label] = _
+
+  @Setup
+  def setup () {
+    edges = BenchGraphs.edges(numVertices)
+    seeds = BenchGraphs.seeds(numVertices)
+  }
+
+  @Benchmark
+  def build: Graph = GraphBuilder(edges.iterator, seeds.iterator)
+
+}
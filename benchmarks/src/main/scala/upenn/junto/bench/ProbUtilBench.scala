@@ -0,0 +1,89 @@
+package upenn.junto.bench
+
+import java.util.concurrent.TimeUnit
+import scala.util.Random
+import gnu.trove.map.hash.TObjectDoubleHashMap
+import org.openjdk.jmh.annotations._
+import upenn.junto.util.{LabelAccumulator, LabelStore, ProbUtil}
+
+/**
+ * The ProbUtil operations of the propagation inner loop, over the
+ * primitive label stores the algorithms use, and over the Trove maps
+ * used elsewhere, for distributions holding half of numLabels labels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class ProbUtilBench {
+
+  @Param(Array("8", "64", "1024"))
+  var numLabels: Int = _
+
+  var store: LabelStore = _
+  var acc: LabelAccumulator = _
+  var scratch: LabelAccumulator = _
+  var map1: TObjectDoubleHashMap[String] = _
+  var map2: TObjectDoubleHashMap[String] = _
+
+  @Setup
+  def setup () {
+    val rand = new Random(1)
+    store = LabelStore.Create(2, numLabels, Integer.MAX_VALUE)
+    acc = new LabelAccumulator(numLabels)
+    scratch = new LabelAccumulator(numLabels)
+    map1 = new TObjectDoubleHashMap[String]
+    map2 = new TObjectDoubleHashMap[String]
+
+    for ((row, map) <- List((0, map1), (1, map2))) {
+      acc.clear
+      for (label <- rand.shuffle((0 until numLabels).toList).take(numLabels / 2)) {
+        val score = rand.nextDouble
+        acc.put(label, score)
+        map.put("L" + label, score)
+      }
+      store.set(row, acc)
+    }
+    acc.clear
+    ProbUtil.AddScores(acc, 1.0, store, 0)
+  }
+
+  @Benchmark
+  def addScores: LabelAccumulator = {
+    scratch.clear
+    ProbUtil.AddScores(scratch, 0.5, store, 0)
+    ProbUtil.AddScores(scratch, 0.5, store, 1)
+    scratch
+  }
+
+  @Benchmark
+  def normalize: LabelAccumulator = {
+    ProbUtil.Normalize(acc)
+    acc
+  }
+
+  @Benchmark
+  def differenceNorm2Squarred: Double =
+    ProbUtil.GetDifferenceNorm2Squarred(store, 0, 1.0, store, 1, 1.0, scratch)
+
+  @Benchmark
+  def addScoresMap: TObjectDoubleHashMap[String] = {
+    val result = new TObjectDoubleHashMap[String]
+    ProbUtil.AddScores(result, 0.5, map1)
+    ProbUtil.AddScores(result, 0.5, map2)
+    result
+  }
+
+  @Benchmark
+  def normalizeMap: TObjectDoubleHashMap[String] = {
+    ProbUtil.Normalize(map1)
+    map1
+  }
+
+  @Benchmark
+  def differenceNorm2SquarredMap: Double =
+    ProbUtil.GetDifferenceNorm2Squarred(map1, 1.0, map2, 1.0)
+
+}
@@ -0,0 +1,78 @@
+package upenn.junto.bench
+
+import java.util.ArrayList
+import java.util.concurrent.TimeUnit
+import org.openjdk.jmh.annotations._
+import upenn.junto.algorithm.{LpZgl, ModifiedAdsorption, PropagationOptions}
+import upenn.junto.util.{LabelAccumulator, LabelStore}
+
+/**
+ * One (sequential, Jacobi) iteration of MAD and of LpZgl over all the
+ * vertices of a BenchGraphs graph. The algorithms are run for one
+ * iteration in the setup, to prepare the graph and the label stores,
+ * and each invocation then computes and swaps in the next scores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class PropagationBench {
+
+  @Param(Array("1000", "10000", "100000"))
+  var numVertices: Int = _
+
+  var mad: ModifiedAdsorption = _
+  var lpZgl: LpZgl = _
+  var madAcc: LabelAccumulator = _
+  var lpZglAcc: LabelAccumulator = _
+
+  @Setup
+  def setup () {
+    val options = PropagationOptions(evalFrequency = 0)
+
+    mad = new ModifiedAdsorption(BenchGraphs.graph(numVertices), Integer.MAX_VALUE,
+                                 1.0, 1e-2, 1e-2, options)
+    mad.run(1, false, false, new ArrayList[Map[String,Double]])
+
+    lpZgl = new LpZgl(BenchGraphs.graph(numVertices), 1.0, Integer.MAX_VALUE, options)
+    lpZgl.run(1, false, false, new ArrayList[Map[String,Double]])
+
+    madAcc = mad.labels.newAccumulator
+    lpZglAcc = lpZgl.labels.newAccumulator
+  }
+
+  @Benchmark
+  def madIteration: LabelStore = {
+    val labels = mad.labels
+    val next = labels.nextEstimated
+    var vi = 0
+    while (vi < labels.numVertices) {
+      mad.computeNewDist(vi, 2, false, madAcc)
+      next.set(vi, madAcc)
+      vi += 1
+    }
+    labels.swapEstimated
+    labels.estimated
+  }
+
+  @Benchmark
+  def lpZglIteration: LabelStore = {
+    val labels = lpZgl.labels
+    val next = labels.nextEstimated
+    var vi = 0
+    while (vi < labels.numVertices) {
+      if (labels.csr.vertices(vi).isSeedNode) {
+        next.copyRow(vi, labels.injected, vi)
+      } else {
+        lpZgl.computeNewDist(vi, lpZglAcc)
+        next.set(vi, lpZglAcc)
+      }
+      vi += 1
+    }
+    labels.swapEstimated
+    labels.estimated
+  }
+
+}
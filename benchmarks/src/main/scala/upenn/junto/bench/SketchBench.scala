@@ -0,0 +1,60 @@
+package upenn.junto.bench
+
+import java.util.concurrent.TimeUnit
+import scala.util.Random
+import gnu.trove.TObjectDoubleHashMap
+import org.openjdk.jmh.annotations._
+import upenn.junto.algorithm.mad_sketch.{CountMinSketchLabel, CountMinSketchLabelManager}
+
+/**
+ * The count-min sketch label operations of MADSketch: adding a scaled
+ * sketch to another, adding a single label, and decoding the scores of
+ * all the labels of a sketch holding numLabels labels.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+class SketchBench {
+
+  val Depth = 3
+
+  @Param(Array("100", "1000"))
+  var width: Int = _
+
+  @Param(Array("10", "100"))
+  var numLabels: Int = _
+
+  var manager: CountMinSketchLabelManager = _
+  var sum: CountMinSketchLabel = _
+  var sketch: CountMinSketchLabel = _
+
+  @Setup
+  def setup () {
+    val rand = new Random(1)
+    manager = new CountMinSketchLabelManager(Depth, width, 1L)
+    sum = manager.getEmptyLabelDist
+    sketch = manager.getEmptyLabelDist
+    for (li <- 0 until numLabels)
+      manager.add(sketch, 1.0f, "L" + li, rand.nextFloat)
+  }
+
+  @Benchmark
+  def add: CountMinSketchLabel = {
+    CountMinSketchLabelManager.add(sum, 1.0f, sketch, 0.5f)
+    sum
+  }
+
+  @Benchmark
+  def addLabel: CountMinSketchLabel = {
+    manager.add(sum, 1.0f, "L0", 0.5f)
+    sum
+  }
+
+  @Benchmark
+  def getLabelScores: TObjectDoubleHashMap[_] =
+    manager.getLabelScores(sketch)
+
+}
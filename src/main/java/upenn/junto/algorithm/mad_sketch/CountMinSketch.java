@@ -70,6 +70,12 @@ public class CountMinSketch // implements IFrequency
         }
     }
 
+    // coefficients of the hash functions, one per row
+    public int[] getHashA()
+    {
+        return hashA;
+    }
+
     public double getRelativeError()
     {
         return eps;
@@ -1,21 +1,21 @@
 package upenn.junto.algorithm.mad_sketch;
 
 public class CountMinSketchLabel {
-	public float[][] table;
+	// the depth x width counters, row by row: the counter of hash
+	// function di in bucket wi is table[di * width + wi]
+	public float[] table;
 	public int depth;
 	public int width; 
 	
 	private CountMinSketchLabel() {}
 	
 	public CountMinSketchLabel(int depth, int width) {
+		this(depth, width, new float[depth * width]);
+	}
+	
+	CountMinSketchLabel(int depth, int width, float[] table) {
 		this.depth = depth;
 		this.width = width;
-		this.table = new float[depth][width];
-		
-		for (int di = 0; di < this.depth; ++di) {
-			for (int wi = 0; wi < this.width; ++wi) {
-				table[di][wi] = 0; 
-			}
-		}
+		this.table = table;
 	}
 }
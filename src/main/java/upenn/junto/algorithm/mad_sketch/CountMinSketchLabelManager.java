@@ -1,5 +1,6 @@
 package upenn.junto.algorithm.mad_sketch;
 
+import java.util.Arrays;
 import java.util.Iterator;
 
 import gnu.trove.TObjectDoubleHashMap;
@@ -15,24 +16,42 @@ public class CountMinSketchLabelManager {
 	private RyanAlphabet la;
 	public CountMinSketch cms;
 	private int[] dummyLabel;
+	private CountMinSketchLabel dummyLabelDist;
+	
+	// the bucket of every label in every row of a sketch, computed once
+	// per label: labelBuckets[labelIndex * depth + di], for the labels
+	// with an index below numHashed
+	private int[] labelBuckets = new int[0];
+	private int numHashed = 0;
+	
+	// score array filled by getLabelScores, one per thread
+	private final ThreadLocal<float[]> scoreBuffer = new ThreadLocal<float[]>();
 	
 	public CountMinSketchLabelManager(int depth, int width) {
+		this(depth, width, System.currentTimeMillis());
+	}
+	
+	// a fixed seed gives the same hash functions in every run, which
+	// resuming from a SketchCheckpoint requires
+	public CountMinSketchLabelManager(int depth, int width, long seed) {
 		la = new RyanAlphabet(String.class);
 		la.allowGrowth();
 		
 		// add dummy label
 		la.lookupIndex(Constants.GetDummyLabel(), true);
 		
-		cms = new CountMinSketch(depth, width, System.currentTimeMillis());
+		cms = new CountMinSketch(depth, width, seed);
 		dummyLabel = getLabelHash(Constants.GetDummyLabel());
+		
+		dummyLabelDist = new CountMinSketchLabel(depth, width);
+		for (int di = 0; di < dummyLabel.length; ++di) {
+			dummyLabelDist.table[di * width + dummyLabel[di]] = 1;
+		}
 	}
 	
+	// the one dummy label distribution, shared by all callers: read only
 	public CountMinSketchLabel GetDummyLabelDist() {
-		CountMinSketchLabel cmsl = new CountMinSketchLabel(cms.depth, cms.width);
-		for (int di = 0; di < dummyLabel.length; ++di) {
-			cmsl.table[di][dummyLabel[di]] = 1;
-		}
-		return (cmsl);
+		return (dummyLabelDist);
 	}
 	
 	public int[] GetDummyLabel() {
@@ -51,41 +70,139 @@ public class CountMinSketchLabelManager {
 //		if (!la.contains(strLabel)) {
 //			MessagePrinter.PrintAndDie("UNKNOWN LABEL: " + strLabel);
 //		}
-		int[] h = new int[cms.depth];
-		for (int di = 0; di < cms.depth; ++di) {
-			// h[di] = cms.hash(strLabel, di);
-			h[di] = cms.hash((long) la.lookupIndex(strLabel) + 1, di);
-			
-			// System.out.println("LABEL HASH: " + strLabel + " " + h[di]);
+		int from = getLabelIndex(strLabel) * cms.depth;
+		return (Arrays.copyOfRange(labelBuckets, from, from + cms.depth));
+	}
+	
+	// the index of a label, which is added to the alphabet if new
+	public int getLabelIndex(String strLabel) {
+		int li = la.lookupIndex(strLabel);
+		if (li >= numHashed) {
+			hashNewLabels();
+		}
+		return (li);
+	}
+	
+	// extend labelBuckets to the labels added to the alphabet since
+	private void hashNewLabels() {
+		int numLabels = la.size();
+		int depth = cms.depth;
+		if (labelBuckets.length < numLabels * depth) {
+			labelBuckets = Arrays.copyOf(labelBuckets,
+					Math.max(numLabels, 2 * numHashed) * depth);
+		}
+		for (int li = numHashed; li < numLabels; ++li) {
+			for (int di = 0; di < depth; ++di) {
+				// labelBuckets[li * depth + di] = cms.hash(strLabel, di);
+				labelBuckets[li * depth + di] = cms.hash((long) li + 1, di);
+			}
 		}
-		// System.out.print("\n");
-		return (h);
+		numHashed = numLabels;
 	}
 	
 	public float getScore(CountMinSketchLabel lab, String label) {
-		return (getScore(lab, getLabelHash(label)));
+		return (getScore(lab, getLabelIndex(label)));
 	}
 	
 	public boolean contains(CountMinSketchLabel lab, String label) {
-		return (getScore(lab, getLabelHash(label)) > 0);
+		return (getScore(lab, getLabelIndex(label)) > 0);
 	}
 	
-	private float getScore(CountMinSketchLabel lab, int[] labHash) {
+	public float getScore(CountMinSketchLabel lab, int labelIndex) {
+		int from = labelIndex * lab.depth;
 		float score = Float.MAX_VALUE;
 		for (int di = 0; di < lab.depth; ++di) {
-			score = Math.min(score, lab.table[di][labHash[di]]);
+			score = Math.min(score, lab.table[di * lab.width + labelBuckets[from + di]]);
 		}
 		return (score);
 	}
 	
+	// The scores of all the labels in lab, by label index (see
+	// getAlphabet), in scores if it is large enough and in a new array
+	// otherwise; the array filled is returned.
+	public float[] getScores(CountMinSketchLabel lab, float[] scores) {
+		if (numHashed < la.size()) {
+			hashNewLabels();
+		}
+		if (scores == null || scores.length < numHashed) {
+			scores = new float[numHashed];
+		}
+		for (int li = 0; li < numHashed; ++li) {
+			scores[li] = getScore(lab, li);
+		}
+		return (scores);
+	}
+	
 	public static void add(CountMinSketchLabel cmsl1, float mult1,
 							CountMinSketchLabel cmsl2, float mult2) {
 		assert(cmsl1 != null);
 		if (cmsl2 == null) { return; }
-		for (int di = 0; di < cmsl1.depth; ++di) {
-			for (int wi = 0; wi < cmsl1.width; ++wi) {
-				cmsl1.table[di][wi] =
-						mult1 * cmsl1.table[di][wi] + mult2 * cmsl2.table[di][wi];
+		float[] t1 = cmsl1.table;
+		float[] t2 = cmsl2.table;
+		for (int i = 0; i < t1.length; ++i) {
+			t1[i] = mult1 * t1[i] + mult2 * t2[i];
+		}
+	}
+	
+	// Set acc to the sum of mults[ni] * neighbors[ni] over the first
+	// numNeighbors sketches, skipping null ones. This and scaleInto are
+	// the whole update of a vertex in MADSketch.Run, so both are kept to
+	// plain loops over the flat tables which the JIT can vectorize.
+	public static void accumulate(CountMinSketchLabel acc,
+									CountMinSketchLabel[] neighbors, float[] mults,
+									int numNeighbors) {
+		float[] t = acc.table;
+		boolean first = true;
+		for (int ni = 0; ni < numNeighbors; ++ni) {
+			if (neighbors[ni] == null) { continue; }
+			float[] n = neighbors[ni].table;
+			float m = mults[ni];
+			if (first) {
+				for (int i = 0; i < t.length; ++i) {
+					t[i] = m * n[i];
+				}
+				first = false;
+			} else {
+				for (int i = 0; i < t.length; ++i) {
+					t[i] += m * n[i];
+				}
+			}
+		}
+		if (first) {
+			clear(acc);
+		}
+	}
+	
+	// Add injMult times injected (none if null) and dummyMult times the
+	// dummy label distribution to acc, then divide it by divisor. Gives
+	// the same floats as the two adds followed by divScores.
+	public void scaleInto(CountMinSketchLabel acc,
+							CountMinSketchLabel injected, float injMult,
+							float dummyMult, double divisor) {
+		assert (divisor > 0);
+		float[] t = acc.table;
+		float[] inj = injected != null && injMult != 0 ? injected.table : null;
+		for (int di = 0; di < dummyLabel.length; ++di) {
+			// the dummy bucket of each row takes its share before the
+			// division, the buckets either side of it are plain
+			int from = di * acc.width;
+			int dummy = from + dummyLabel[di];
+			scaleRange(t, inj, injMult, divisor, from, dummy);
+			float s = inj != null ? t[dummy] + injMult * inj[dummy] : t[dummy];
+			t[dummy] = (float) ((s + dummyMult) / divisor);
+			scaleRange(t, inj, injMult, divisor, dummy + 1, from + acc.width);
+		}
+	}
+	
+	private static void scaleRange(float[] t, float[] inj, float injMult,
+									double divisor, int from, int to) {
+		if (inj != null) {
+			for (int i = from; i < to; ++i) {
+				t[i] = (float) ((t[i] + injMult * inj[i]) / divisor);
+			}
+		} else if (divisor != 1) {
+			for (int i = from; i < to; ++i) {
+				t[i] = (float) (t[i] / divisor);
 			}
 		}
 	}
@@ -93,70 +210,47 @@ public class CountMinSketchLabelManager {
 	public void add(CountMinSketchLabel cmsl1, float mult1, String label, float mult2) {
 		if (mult2 == 0) { return; }
 
-		int[] labHash = this.getLabelHash(label);
-		if (!la.contains(label)) { la.lookupIndex(label, true); }
-		
-		add(cmsl1, mult1, labHash, mult2);
-	}
-	
-	private static void add(CountMinSketchLabel cmsl1, float mult1,
-														int[] labelHash, float mult2) {
+		int from = getLabelIndex(label) * cmsl1.depth;
 		for (int di = 0; di < cmsl1.depth; ++di) {
-			cmsl1.table[di][labelHash[di]] =
-						mult1 * cmsl1.table[di][labelHash[di]] + mult2;
+			int i = di * cmsl1.width + labelBuckets[from + di];
+			cmsl1.table[i] = mult1 * cmsl1.table[i] + mult2;
 		}
 	}
 
 	public static void divScores(CountMinSketchLabel lab, double divisor) {
 		assert (divisor > 0);
 		
-		for (int di = 0; di < lab.depth; ++di) {
-			for (int wi = 0; wi < lab.width; ++wi) {
-				lab.table[di][wi] /= divisor;
-			}
+		float[] t = lab.table;
+		for (int i = 0; i < t.length; ++i) {
+			t[i] /= divisor;
 		}
 	}
 	
 	public static CountMinSketchLabel clear(CountMinSketchLabel lab) {
-		for (int di = 0; di < lab.depth; ++di) {
-			for (int wi = 0; wi < lab.width; ++wi) {
-				lab.table[di][wi] = 0;
-			}
-		}
+		Arrays.fill(lab.table, 0);
 		return (lab);
 	}
 	
 	public static boolean isEmpty(CountMinSketchLabel lab) {
-		boolean isEmpty = true;
-		for (int di = 0; di < lab.depth; ++di) {
-			for (int wi = 0; wi < lab.width; ++wi) {
-				if (lab.table[di][wi] != 0) {
-					isEmpty = false;
-					break;
-				}
-			}
-			if (!isEmpty) { break; }
+		float[] t = lab.table;
+		for (int i = 0; i < t.length; ++i) {
+			if (t[i] != 0) { return (false); }
 		}
-		return (isEmpty);
+		return (true);
 	}
 	
 	public static CountMinSketchLabel clone(CountMinSketchLabel inp) {
-		CountMinSketchLabel res = new CountMinSketchLabel(inp.depth, inp.width);
-		res.table = inp.table.clone();		
-		return res;
+		return (new CountMinSketchLabel(inp.depth, inp.width, inp.table.clone()));
 	}
 	
 	public TObjectDoubleHashMap getLabelScores(CountMinSketchLabel labelScores) {
 		TObjectDoubleHashMap ret = new TObjectDoubleHashMap();
 		
 		if (labelScores != null) {
-			Iterator labIter = la.iterator();
-			while (labIter.hasNext()) {
-				String lab = (String) labIter.next();
-
-				float score = getScore(labelScores, getLabelHash(lab));
-				if (score > 0) {
-					ret.put(lab, score);
+			float[] scores = decode(labelScores);
+			for (int li = 0; li < la.size(); ++li) {
+				if (scores[li] > 0) {
+					ret.put(la.lookupObject(li), scores[li]);
 				}
 			}
 		}
@@ -166,18 +260,36 @@ public class CountMinSketchLabelManager {
 	public TObjectFloatHashMap getLabelScores2(CountMinSketchLabel labelScores) {
 		TObjectFloatHashMap ret = new TObjectFloatHashMap();
 		
-		Iterator labIter = la.iterator();
-		while (labIter.hasNext()) {
-			String lab = (String) labIter.next();
-			
-			float score = getScore(labelScores, getLabelHash(lab));
+		float[] scores = decode(labelScores);
+		for (int li = 0; li < la.size(); ++li) {
+			if (scores[li] > 0) {
+				ret.put(la.lookupObject(li), scores[li]);
+			}
+		}
+		return (ret);
+	}
+	
+	// the scores of the given labels only, see TopLabels
+	public TObjectDoubleHashMap getLabelScores(CountMinSketchLabel labelScores,
+												TopLabels top) {
+		TObjectDoubleHashMap ret = new TObjectDoubleHashMap();
+		
+		for (int ti = 0; ti < top.size; ++ti) {
+			float score = getScore(labelScores, top.labels[ti]);
 			if (score > 0) {
-				ret.put(lab, score);
+				ret.put(la.lookupObject(top.labels[ti]), score);
 			}
 		}
 		return (ret);
 	}
 	
+	// getScores into the score buffer of the current thread
+	private float[] decode(CountMinSketchLabel labelScores) {
+		float[] scores = getScores(labelScores, scoreBuffer.get());
+		scoreBuffer.set(scores);
+		return (scores);
+	}
+	
 //	public String printPrettyLabels(CountMinSketchLabel labelScores) {
 //		TObjectDoubleHashMap<String> stringLabelScores = new TObjectDoubleHashMap<String>();
 //		
@@ -196,6 +308,11 @@ public class CountMinSketchLabelManager {
 //		return (CollectionUtil2.Map2String(stringLabelScores));
 //	}
 	
+	// labels by index; the index of a label is the item hashed
+	public RyanAlphabet getAlphabet() {
+		return (la);
+	}
+	
 	public Class<CountMinSketchLabel> getLabelType() {
 		return CountMinSketchLabel.class;
 	}
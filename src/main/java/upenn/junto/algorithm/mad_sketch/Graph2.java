@@ -32,6 +32,11 @@ public class Graph2 {
   public HashMap<String,Vertex2> _vertices;
   public TObjectDoubleHashMap<String> _labels;
   public CountMinSketchLabelManager _labelManager;
+  // worker threads of MADSketch.Run
+  public int _numThreads;
+  // whether MADSketch.Run tracks approximate top labels when keeping the
+  // top k labels (see TopLabels)
+  public boolean _trackTopLabels;
   private boolean _isSeedInjected = false;
 	
   private static String kDelim_ = "\t"; 
@@ -43,7 +48,15 @@ public class Graph2 {
     int depth = Integer.parseInt(Defaults.GetValueOrDie(config, "sketch_depth"));
     int width = Integer.parseInt(Defaults.GetValueOrDie(config, "sketch_width"));
     
-    _labelManager = new CountMinSketchLabelManager(depth, width);
+    // a random seed by default
+    long seed = config.containsKey("sketch_seed") ?
+      Long.parseLong((String) config.get("sketch_seed")) : System.currentTimeMillis();
+    
+    _labelManager = new CountMinSketchLabelManager(depth, width, seed);
+    
+    _numThreads = Defaults.GetValueOrDefault((String) config.get("num_threads"), 1);
+    _trackTopLabels =
+      Defaults.GetValueOrDefault((String) config.get("sketch_top_labels"), false);
   }
 	
 //  public Vertex2 AddVertex2(String name, String label) {
@@ -354,8 +367,10 @@ public class Graph2 {
         String vName = vIter.next();
         Vertex2 v = _vertices.get(vName);
 				
+        // decoded once, for the output and the MRR
+        TObjectDoubleHashMap estimatedScores = v.DecodeEstimatedLabelScores();
+        double mrr = v.GetMRR(estimatedScores);
         if (v.IsTestNode()) {
-          double mrr = v.GetMRR();
           ++total_doc_cnt;
           doc_mrr_sum += mrr;
           if (mrr == 1) {
@@ -368,9 +383,9 @@ public class Graph2 {
                 // v.GetEstimatedLabelScoresPretty(this._labelManager) + kDelim_ +
         		CollectionUtil2.Map2String(this._labelManager.getLabelScores(v.GetGoldLabel())) + kDelim_ +
         		CollectionUtil2.Map2String(this._labelManager.getLabelScores(v.GetInjectedLabelScores())) + kDelim_ +
-        		CollectionUtil2.Map2String(this._labelManager.getLabelScores(v.GetEstimatedLabelScores())) + kDelim_ +
+        		CollectionUtil2.Map2String(estimatedScores) + kDelim_ +
                  v.IsTestNode() + kDelim_ +
-                 v.GetMRR() + "\n");
+                 mrr + "\n");
       }
       bw.close();
 			
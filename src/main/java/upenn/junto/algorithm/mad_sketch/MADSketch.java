@@ -1,5 +1,6 @@
 package upenn.junto.algorithm.mad_sketch;
 
+import upenn.junto.algorithm.VertexParallelizer;
 import upenn.junto.config.Flags;
 // import upenn.junto.eval.GraphEval;
 import upenn.junto.graph.*;
@@ -7,15 +8,19 @@ import upenn.junto.graph.*;
 import upenn.junto.util.Constants;
 import upenn.junto.util.MessagePrinter;
 import upenn.junto.util.ProbUtil;
+import upenn.junto.util.RunMetrics;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Iterator;
 
 import gnu.trove.TObjectDoubleHashMap;
 import gnu.trove.TObjectDoubleIterator;
 import gnu.trove.TObjectFloatIterator;
 
+import scala.runtime.AbstractFunction1;
+import scala.runtime.BoxedUnit;
+
 public class MADSketch {
 
   // This method runs Adsorption when mode = original, and it runs
@@ -24,6 +29,48 @@ public class MADSketch {
                          double mu1, double mu2, double mu3,
                          int keepTopKLabels, boolean useBipartitieOptimization,
                          boolean verbose, ArrayList resultList) {
+    Run(g, maxIter, mode, mu1, mu2, mu3, keepTopKLabels, useBipartitieOptimization,
+        verbose, resultList, null, 0, false);
+  }
+
+  // As above, writing the estimated sketches to checkpointFile every
+  // checkpointFrequency iterations (0 for never), and, with resume,
+  // restarting from checkpointFile after the iteration it was taken at
+  // (see SketchCheckpoint).
+  public static void Run(Graph2 g, int maxIter, String mode,
+                         double mu1, double mu2, double mu3,
+                         int keepTopKLabels, boolean useBipartitieOptimization,
+                         boolean verbose, ArrayList resultList,
+                         String checkpointFile, int checkpointFrequency, boolean resume) {
+    Run(g, maxIter, mode, mu1, mu2, mu3, keepTopKLabels, useBipartitieOptimization,
+        verbose, resultList, checkpointFile, checkpointFrequency, resume,
+        new RunMetrics("MADSketch", null, false));
+  }
+
+  // As above, recording the performance figures of every iteration in
+  // metrics (see RunMetrics); the label delta and label count histogram
+  // are not tracked for sketches.
+  public static void Run(Graph2 g, int maxIter, String mode,
+                         double mu1, double mu2, double mu3,
+                         int keepTopKLabels, boolean useBipartitieOptimization,
+                         boolean verbose, ArrayList resultList,
+                         String checkpointFile, int checkpointFrequency, boolean resume,
+                         RunMetrics metrics) {
+    Run(g, maxIter, mode, mu1, mu2, mu3, keepTopKLabels, useBipartitieOptimization,
+        verbose, resultList, checkpointFile, checkpointFrequency, resume,
+        metrics, g._numThreads);
+  }
+
+  // As above, computing the new sketches of the vertices on numThreads
+  // threads. Each vertex is computed from the previous iteration only,
+  // so the result does not depend on the number of threads. Verbose
+  // runs are sequential, to keep their output readable.
+  public static void Run(final Graph2 g, int maxIter, final String mode,
+                         final double mu1, final double mu2, final double mu3,
+                         int keepTopKLabels, boolean useBipartitieOptimization,
+                         final boolean verbose, ArrayList resultList,
+                         String checkpointFile, int checkpointFrequency, boolean resume,
+                         RunMetrics metrics, int numThreads) {
 		
     // Class prior normalization
     // g.ClassPriorNormalization();
@@ -78,264 +125,428 @@ public class MADSketch {
 //                         " mrr_test: " + GraphEval.GetAverageTestMRR(g));	
 //    }
     
+    SketchCheckpoint checkpoint =
+      new SketchCheckpoint(checkpointFile, checkpointFrequency, mode, mu1, mu2, mu3);
+    int resumedIter = resume ? checkpoint.resume(g) : 0;
+
     long timeInLastIteration = 0;
+
+    // Every vertex has two sketches, allocated here once: the one it
+    // holds as its estimated labels, and next[vi], which an iteration
+    // overwrites with the new labels. Updating a vertex swaps the two.
+    final String[] names = g._vertices.keySet().toArray(new String[0]);
+    final Vertex2[] vertices = new Vertex2[names.length];
+    final CountMinSketchLabel[] next = new CountMinSketchLabel[names.length];
+    long numEdges = 0;
+    for (int vi = 0; vi < names.length; ++vi) {
+      vertices[vi] = g._vertices.get(names[vi]);
+      next[vi] = g._labelManager.getEmptyLabelDist();
+      numEdges += vertices[vi].GetNeighbors().size();
+    }
+
+    // With keepTopKLabels and sketch_top_labels, approximate top labels
+    // of every vertex are tracked (see TopLabels): nextTop[vi] receives
+    // the new ones, and is swapped along with next[vi]. Otherwise any
+    // left by an earlier run are dropped, and every label is scored.
+    final TopLabels[] nextTop;
+    final int[][] injectedLabels;
+    final int dummyLabel = g._labelManager.getLabelIndex(Constants.GetDummyLabel());
+    if (g._trackTopLabels && keepTopKLabels > 0 && keepTopKLabels < Integer.MAX_VALUE) {
+      injectedLabels = InitTopLabels(g, vertices, keepTopKLabels);
+      nextTop = new TopLabels[names.length];
+      for (int vi = 0; vi < names.length; ++vi) {
+        nextTop[vi] = new TopLabels(keepTopKLabels);
+      }
+    } else {
+      injectedLabels = null;
+      nextTop = null;
+      for (int vi = 0; vi < names.length; ++vi) {
+        vertices[vi].SetTopLabels(null);
+      }
+    }
+
+    // the per-vertex output of verbose updates would interleave
+    if (verbose && numThreads > 1) {
+      MessagePrinter.Print("Warning: verbose runs are sequential, ignoring num_threads");
+    }
+    VertexParallelizer par = new VertexParallelizer(verbose ? 1 : numThreads);
+    final ThreadLocal<NeighborScratch> scratch = new ThreadLocal<NeighborScratch>() {
+      protected NeighborScratch initialValue() {
+        return (new NeighborScratch());
+      }
+    };
+    final ThreadLocal<TopLabels.Selector> selector = new ThreadLocal<TopLabels.Selector>() {
+      protected TopLabels.Selector initialValue() {
+        return (new TopLabels.Selector(g._labelManager));
+      }
+    };
 		
-    for (int iter = 1; iter <= maxIter; ++iter) {
-      System.gc();
-      System.out.println("\nIteration: " + iter +
-	  			 " memory_used: " + (Runtime.getRuntime().totalMemory() - 
-	  					 					Runtime.getRuntime().freeMemory()) +
-	  			 " time_in_lat_iter(msec): " + timeInLastIteration);
+    try {
+      for (int iter = resumedIter + 1; iter <= maxIter; ++iter) {
+        System.out.println("\nIteration: " + iter +
+  	  			 " heap_used: " + metrics.getHeapUsedBytes() +
+  	  			 " time_in_lat_iter(msec): " + timeInLastIteration);
 			
-      long startTime = System.currentTimeMillis();
-
-      // new (veretx, labelScores) map
-      // HashMap<String, TObjectDoubleHashMap> newDist =
-      //  new HashMap<String, TObjectDoubleHashMap>();
-      HashMap<String,CountMinSketchLabel> newDist =
-    		  new HashMap<String,CountMinSketchLabel>();
-      
-      Iterator<String> viter = g._vertices.keySet().iterator();
+        long startTime = System.currentTimeMillis();
+        metrics.startIteration(iter);
+        metrics.startPhase(RunMetrics.COMPUTE);
+        final int fiter = iter;
+        par.foreach(names.length, new AbstractFunction1<Object,BoxedUnit>() {
+          public BoxedUnit apply(Object vi) {
+            int i = (Integer) vi;
+            UpdateVertex(g, names[i], vertices[i], next[i], scratch.get(),
+                         fiter, mode, mu1, mu2, mu3, verbose);
+            if (nextTop != null) {
+              SelectTopLabels(g, vertices[i], next[i], injectedLabels[i], dummyLabel,
+                              selector.get(), nextTop[i]);
+            }
+            return (BoxedUnit.UNIT);
+          }
+        });
 			
-      while (viter.hasNext()) {
-        String vName = viter.next();
-        Vertex2 v = g._vertices.get(vName);
+  //      double deltaLabelDiff = 0;
+			
+        int totalColumnUpdates = 0;
+        int totalEntityUpdates = 0;
+		
+        // update all vertices with new estimated label scores
+        metrics.startPhase(RunMetrics.APPLY);
+        for (int vi = 0; vi < names.length; ++vi) {
+          String vName = names[vi];
+          Vertex2 v = vertices[vi];
 				
-        // if not present already, create a new label score map
-        // for the current hash map. otherwise, it is an error
-        if (!newDist.containsKey(vName)) {
-          // newDist.put(vName, new TObjectDoubleHashMap());
-          // newDist.put(vName, new LabelScores<T>());
-          newDist.put(vName, g._labelManager.getEmptyLabelDist());
-        } else {
-          MessagePrinter.PrintAndDie("Duplicate node found: " + vName);
-        }
+  //        if (false && v.IsSeedNode()) {
+  //          MessagePrinter.PrintAndDie("Should have never reached here!");
+  //          v.SetEstimatedLabelScores(v.GetInjectedLabelScores().clone());
+  //        } else {
+            if (!useBipartitieOptimization) {
+  //            // deltaLabelDiff += ProbUtil.GetDifferenceNorm2Squarred(
+  //            //                                                   v.GetEstimatedLabelScores(), 1.0, dist, 1.0);
+  //        	  deltaLabelDiff +=
+  //        			  v.GetEstimatedLabelScores().getSquarredDifference(1.0, dist, 1.0);
+  //        	  
+  //            v.SetEstimatedLabelScores(dist.clone());
+
+          	  // System.out.println("SETTING_EST: " + newDist.size() + " " + vName + " " + (dist == null));
+          	  SwapLabels(v, vi, next, nextTop);
+            } else {
+              // update column node labels on odd iterations
+              if (Flags.IsColumnNode(vName) && (iter % 2 == 0)) {
+                ++totalColumnUpdates;
+  //              deltaLabelDiff += 
+  //            		  // ProbUtil.GetDifferenceNorm2Squarred(v.GetEstimatedLabelScores(),
+  //            		  v.GetEstimatedLabelScores().getSquarredDifference(1.0, dist, 1.0);
+                SwapLabels(v, vi, next, nextTop);
+              }
+						
+              // update entity labels on even iterations
+              if (!Flags.IsColumnNode(vName) && (iter % 2 == 1)) {
+                ++totalEntityUpdates;
+  //              deltaLabelDiff += // ProbUtil.GetDifferenceNorm2Squarred(v.GetEstimatedLabelScores(),
+  //            		  v.GetEstimatedLabelScores().getSquarredDifference(1.0, dist, 1.0);
+                SwapLabels(v, vi, next, nextTop);
+              }
+           }
+         }
+        //}
+			
+        long endTime = System.currentTimeMillis();
+        timeInLastIteration = endTime - startTime;
+			
+        int totalNodes = g._vertices.size();
+  //      double deltaLabelDiffPerNode = (1.0 * deltaLabelDiff) / totalNodes;
+
+        metrics.startPhase(RunMetrics.EVALUATE);
+        TObjectDoubleHashMap res = new TObjectDoubleHashMap();
+        res.put(Constants.GetMRRString(), Graph2.GetAverageTestMRR(g));
+        res.put(Constants.GetPrecisionString(), Graph2.GetAccuracy(g));
+        resultList.add(res);
+  //      if (verbose) {
+  //        System.out.println("after_iteration " + iter +
+  //                           " objective: " + GetObjective(g, mu1, mu2, mu3) +
+  //                           " accuracy: " + res.get(Constants.GetPrecisionString()) +
+  //                           " rmse: " + GraphEval.GetRMSE(g) +
+  //                           " time: " + (endTime - startTime) +
+  //                           " label_diff_per_node: " + deltaLabelDiffPerNode +
+  //                           " mrr_train: " + GraphEval.GetAverageTrainMRR(g) +
+  //                           " mrr_test: " + res.get(Constants.GetMRRString()) +
+  //                           " column_updates: " + totalColumnUpdates +
+  //                           " entity_updates: " + totalEntityUpdates + "\n");
+  //      }
+			
+        metrics.endIteration(numEdges, totalNodes,
+                             useBipartitieOptimization ?
+                             totalColumnUpdates + totalEntityUpdates : totalNodes,
+                             Double.NaN, null);
+        checkpoint.afterIteration(iter, g);
+			
+  //      if (false && deltaLabelDiffPerNode <= Constants.GetStoppingThreshold()) {
+  //        if (useBipartitieOptimization) {
+  //          if (iter > 1 && iter % 2 == 1) {
+  //            MessagePrinter.Print("Convergence reached!!");
+  //            break;
+  //          }
+  //        } else {
+  //          MessagePrinter.Print("Convergence reached!!");
+  //          break;
+  //        }
+  //      }
+      }
+    } finally {
+      par.shutdown();
+      metrics.close();
+      checkpoint.close();
+    }
+		
+    if (resultList.size() > 0) {
+      TObjectDoubleHashMap res =
+        (TObjectDoubleHashMap) resultList.get(resultList.size() - 1);
+      MessagePrinter.Print(Constants.GetPrecisionString() + " " +
+                           res.get(Constants.GetPrecisionString()));
+      MessagePrinter.Print(Constants.GetMRRString() + " " +
+                           res.get(Constants.GetMRRString()));
+    }
+  }
+
+  // Compute the new label scores of v, named vName, into dist.
+  // Reads only the estimated labels of the other vertices, so vertices
+  // can be updated in any order, and by several threads at once.
+  private static void UpdateVertex(Graph2 g, String vName, Vertex2 v,
+                                   CountMinSketchLabel dist, NeighborScratch scratch,
+                                   int iter, String mode,
+                                   double mu1, double mu2, double mu3,
+                                   boolean verbose) {
 				
-        // compute weighted neighborhood label distribution
-        Object[] neighNames = v.GetNeighborNames();
-        for (int ni = 0; ni < neighNames.length; ++ni) {
-          String neighName = (String) neighNames[ni];
-          Vertex2 neigh = g._vertices.get(neighName);
+    // compute weighted neighborhood label distribution
+    Object[] neighNames = v.GetNeighborNames();
+    CountMinSketchLabel[] neighDists = scratch.dists(neighNames.length);
+    float[] neighMults = scratch.mults;
+    for (int ni = 0; ni < neighNames.length; ++ni) {
+      String neighName = (String) neighNames[ni];
+      Vertex2 neigh = g._vertices.get(neighName);
 
-          double mult = -1;
-          if (Flags.IsOriginalMode(mode)) {
-            // multiplier for Adsorption update
-            // p_v_cont * w_uv (where u is neighbor)
-            mult = v.GetContinuationProbability() * neigh.GetNeighborWeight(vName);
-          } else if (Flags.IsModifiedMode(mode)) {
-            // multiplier for MAD update
-            // (p_v_cont * w_vu + p_u_cont * w_uv) where u is neighbor
-            mult = (v.GetContinuationProbability() * v.GetNeighborWeight(neighName) +
-                    neigh.GetContinuationProbability() * neigh.GetNeighborWeight(vName));
+      double mult = -1;
+      if (Flags.IsOriginalMode(mode)) {
+        // multiplier for Adsorption update
+        // p_v_cont * w_uv (where u is neighbor)
+        mult = v.GetContinuationProbability() * neigh.GetNeighborWeight(vName);
+      } else if (Flags.IsModifiedMode(mode)) {
+        // multiplier for MAD update
+        // (p_v_cont * w_vu + p_u_cont * w_uv) where u is neighbor
+        mult = (v.GetContinuationProbability() * v.GetNeighborWeight(neighName) +
+                neigh.GetContinuationProbability() * neigh.GetNeighborWeight(vName));
 						
-            if (verbose) {
-              System.out.println(v.GetName() + " " +
-            		  			 v.GetContinuationProbability() + " " +
-                                 v.GetNeighborWeight(neighName) + " " +
-                                 neigh.GetContinuationProbability() + " " +
-                                 neigh.GetNeighborWeight(vName));
-            }
-          } else {
-            MessagePrinter.PrintAndDie("Invalid mode: " + mode);
-          }
-          if (mult <= 0) {
-            MessagePrinter.PrintAndDie("Non-positive weighted edge:>>" +
-                                       neigh.GetName() + "-->" + v.GetName() + "<<" + " " + mult);
-          }
-          
-          // ProbUtil.AddScores(newDist.get(vName),
-          CountMinSketchLabelManager.add(newDist.get(vName), (float) 1.0,                          	  
-                          	  		neigh.GetEstimatedLabelScores(), (float) (mult * mu2));
+        if (verbose) {
+          System.out.println(v.GetName() + " " +
+        		  			 v.GetContinuationProbability() + " " +
+                             v.GetNeighborWeight(neighName) + " " +
+                             neigh.GetContinuationProbability() + " " +
+                             neigh.GetNeighborWeight(vName));
         }
+      } else {
+        MessagePrinter.PrintAndDie("Invalid mode: " + mode);
+      }
+      if (mult <= 0) {
+        MessagePrinter.PrintAndDie("Non-positive weighted edge:>>" +
+                                   neigh.GetName() + "-->" + v.GetName() + "<<" + " " + mult);
+      }
+      
+      // ProbUtil.AddScores(dist,
+      neighDists[ni] = neigh.GetEstimatedLabelScores();
+      neighMults[ni] = (float) (mult * mu2);
+    }
+    CountMinSketchLabelManager.accumulate(dist,
+                                          neighDists, neighMults, neighNames.length);
+    Arrays.fill(neighDists, 0, neighNames.length, null);
 				
 //        if (verbose) {
 //          System.out.println("Before norm: " + v.GetName() + " " +
-//                             // ProbUtil.GetSum(newDist.get(vName)));
-//                             newDist.get(vName).getSum());
+//                             // ProbUtil.GetSum(dist));
+//                             dist.getSum());
 //        }
 				
-        // normalization is needed only for the original Adsorption algorithm
+    // normalization is needed only for the original Adsorption algorithm
 //        if (mode.equals("original")) {
 //          // after normalization, we have the weighted
 //          // neighborhood label distribution for the current node
-//          // ProbUtil.Normalize(newDist.get(vName));
-//          newDist.get(vName).normalize();
+//          // ProbUtil.Normalize(dist);
+//          dist.normalize();
 //        }
 				
 //        if (verbose) {
 //          System.out.println("After norm: " + v.GetName() + " " +
-//                             // ProbUtil.GetSum(newDist.get(vName)));
-//                             newDist.get(vName).getSum());
+//                             // ProbUtil.GetSum(dist));
+//                             dist.getSum());
 //        }
-        
-        if (verbose) {
-            System.out.println(iter + " after_neigh " + v.GetName() + " " +
-                               // ProbUtil.GetSum(newDist.get(vName)) + 
-            //                  newDist.get(vName).getSum() +
-            //                   " " + CollectionUtil2.Map2String(newDist.get(vName)) +
-                               " " + CollectionUtil2.Map2String(g._labelManager.getLabelScores(newDist.get(vName))) +
-                               " mu1: " + mu1);
-        }
+    
+    if (verbose) {
+        System.out.println(iter + " after_neigh " + v.GetName() + " " +
+                           // ProbUtil.GetSum(dist) + 
+        //                  dist.getSum() +
+        //                   " " + CollectionUtil2.Map2String(dist) +
+                           " " + CollectionUtil2.Map2String(g._labelManager.getLabelScores(dist)) +
+                           " mu1: " + mu1);
+    }
 				
-        // add injection probability
-        // ProbUtil.AddScores(newDist.get(vName),
-        CountMinSketchLabelManager.add(newDist.get(vName), (float) 1.0,
-                        v.GetInjectedLabelScores(), (float) (v.GetInjectionProbability() * mu1));
+    if (!verbose) {
+      // injection and dummy label, then the normalization in case
+      // of MAD, in one pass over the sketch
+      g._labelManager.scaleInto(dist,
+                                v.GetInjectedLabelScores(),
+                                (float) (v.GetInjectionProbability() * mu1),
+                                (float) (v.GetTerminationProbability() * mu3),
+                                Flags.IsModifiedMode(mode) ?
+                                v.GetNormalizationConstant(g, mu1, mu2, mu3) : 1);
+      return;
+    }
+
+    // the same step by step, printing the sketch after each
+
+    // add injection probability
+    // ProbUtil.AddScores(dist,
+    CountMinSketchLabelManager.add(dist, (float) 1.0,
+                    v.GetInjectedLabelScores(), (float) (v.GetInjectionProbability() * mu1));
 				
-        if (verbose) {
-          System.out.println(iter + " after_inj " + v.GetName() + " " +
-                             // ProbUtil.GetSum(newDist.get(vName)) + 
-          //                  newDist.get(vName).getSum() +
-          //                   " " + CollectionUtil2.Map2String(newDist.get(vName)) +
-                             " " + CollectionUtil2.Map2String(g._labelManager.getLabelScores(newDist.get(vName))) +
-                             " mu1: " + mu1);
-        }
+    if (verbose) {
+      System.out.println(iter + " after_inj " + v.GetName() + " " +
+                         // ProbUtil.GetSum(dist) + 
+      //                  dist.getSum() +
+      //                   " " + CollectionUtil2.Map2String(dist) +
+                         " " + CollectionUtil2.Map2String(g._labelManager.getLabelScores(dist)) +
+                         " mu1: " + mu1);
+    }
 
-        // add dummy label distribution
-        // ProbUtil.AddScores(newDist.get(vName),
-        CountMinSketchLabelManager.add(newDist.get(vName), (float) 1.0,
-                        g._labelManager.GetDummyLabelDist(), (float) (v.GetTerminationProbability() * mu3));
-                        // ()Constants.GetDummyLabelDist());
-        // ProbUtil.AddScores(newDist.get(vName),
-        // v.GetTerminationProbability() * mu3,
-        // labels);
+    // add dummy label distribution
+    // ProbUtil.AddScores(dist,
+    CountMinSketchLabelManager.add(dist, (float) 1.0,
+                    g._labelManager.GetDummyLabelDist(), (float) (v.GetTerminationProbability() * mu3));
+                    // ()Constants.GetDummyLabelDist());
+    // ProbUtil.AddScores(dist,
+    // v.GetTerminationProbability() * mu3,
+    // labels);
 				
-        if (verbose) {
-          System.out.println(iter + " after_dummy " + v.GetName() + " " +
-                             // ProbUtil.GetSum(newDist.get(vName)) + " " +
-          //                   newDist.get(vName).getSum() + " " +
-          //                   CollectionUtil2.Map2String(newDist.get(vName)) +
-          					CollectionUtil2.Map2String(g._labelManager.getLabelScores(newDist.get(vName))) +
-                            " injected: " + CollectionUtil2.Map2String(g._labelManager.getLabelScores(v.GetInjectedLabelScores())));
-        }
+    if (verbose) {
+      System.out.println(iter + " after_dummy " + v.GetName() + " " +
+                         // ProbUtil.GetSum(dist) + " " +
+      //                   dist.getSum() + " " +
+      //                   CollectionUtil2.Map2String(dist) +
+      					CollectionUtil2.Map2String(g._labelManager.getLabelScores(dist)) +
+                        " injected: " + CollectionUtil2.Map2String(g._labelManager.getLabelScores(v.GetInjectedLabelScores())));
+    }
 				
 //        // keep only the top scoring k labels, this is particularly useful
 //        // when a large number of labels are involved.
 //        if (keepTopKLabels < Integer.MAX_VALUE) {
-//          // ProbUtil.KeepTopScoringKeys(newDist.get(vName), keepTopKLabels);
-//        	newDist.get(vName).keepTopScoringKeys(keepTopKLabels);
-//          if (newDist.get(vName).size() > keepTopKLabels) {
+//          // ProbUtil.KeepTopScoringKeys(dist, keepTopKLabels);
+//        	dist.keepTopScoringKeys(keepTopKLabels);
+//          if (dist.size() > keepTopKLabels) {
 //            MessagePrinter.PrintAndDie("size mismatch: " +
-//                                       newDist.get(vName).size() + " " + keepTopKLabels);
+//                                       dist.size() + " " + keepTopKLabels);
 //          }
 //        }
 				
-        // normalize in case of Adsorption
-        if (Flags.IsModifiedMode(mode)) {
-          // ProbUtil.DivScores(newDist.get(vName), v.GetNormalizationConstant(g, mu1, mu2, mu3));
-        	
-        	double divisor = v.GetNormalizationConstant(g, mu1, mu2, mu3);
-        	if (verbose) {
-        		System.out.println("BEFORE DIV: " + vName + " "  + divisor + " " + 
-        				CollectionUtil2.Map2String(g._labelManager.getLabelScores(newDist.get(vName))));
-        	}
-        	CountMinSketchLabelManager.divScores(newDist.get(vName), divisor);
-        	if (verbose) {
-        		System.out.println("AFTER DIV:" + vName + " " + divisor + " " +
-        				CollectionUtil2.Map2String(g._labelManager.getLabelScores(newDist.get(vName))));
-        	}
-        } else {
-          // ProbUtil.Normalize(newDist.get(vName), keepTopKLabels);
-//          newDist.get(vName).normalize(keepTopKLabels);
-        }
-      }			
-			
-//      double deltaLabelDiff = 0;
-			
-      int totalColumnUpdates = 0;
-      int totalEntityUpdates = 0;
-		
-      // update all vertices with new estimated label scores
-      viter = g._vertices.keySet().iterator();
-      while (viter.hasNext()) {
-        String vName = viter.next();
-        Vertex2 v = g._vertices.get(vName);
-				
-//        if (false && v.IsSeedNode()) {
-//          MessagePrinter.PrintAndDie("Should have never reached here!");
-//          v.SetEstimatedLabelScores(v.GetInjectedLabelScores().clone());
-//        } else {
-          if (!useBipartitieOptimization) {
-//            // deltaLabelDiff += ProbUtil.GetDifferenceNorm2Squarred(
-//            //                                                   v.GetEstimatedLabelScores(), 1.0, newDist.get(vName), 1.0);
-//        	  deltaLabelDiff +=
-//        			  v.GetEstimatedLabelScores().getSquarredDifference(1.0, newDist.get(vName), 1.0);
-//        	  
-//            v.SetEstimatedLabelScores(newDist.get(vName).clone());
+    // normalize in case of Adsorption
+    if (Flags.IsModifiedMode(mode)) {
+      // ProbUtil.DivScores(dist, v.GetNormalizationConstant(g, mu1, mu2, mu3));
+    	
+    	double divisor = v.GetNormalizationConstant(g, mu1, mu2, mu3);
+    	if (verbose) {
+    		System.out.println("BEFORE DIV: " + vName + " "  + divisor + " " + 
+    				CollectionUtil2.Map2String(g._labelManager.getLabelScores(dist)));
+    	}
+    	CountMinSketchLabelManager.divScores(dist, divisor);
+    	if (verbose) {
+    		System.out.println("AFTER DIV:" + vName + " " + divisor + " " +
+    				CollectionUtil2.Map2String(g._labelManager.getLabelScores(dist)));
+    	}
+    } else {
+      // ProbUtil.Normalize(dist, keepTopKLabels);
+//          dist.normalize(keepTopKLabels);
+    }
+  }
 
-        	  // System.out.println("SETTING_EST: " + newDist.size() + " " + vName + " " + (newDist.get(vName) == null));
-        	  v.SetEstimatedLabelScores(
-        			  CountMinSketchLabelManager.clone(newDist.get(vName)));
-          } else {
-            // update column node labels on odd iterations
-            if (Flags.IsColumnNode(vName) && (iter % 2 == 0)) {
-              ++totalColumnUpdates;
-//              deltaLabelDiff += 
-//            		  // ProbUtil.GetDifferenceNorm2Squarred(v.GetEstimatedLabelScores(),
-//            		  v.GetEstimatedLabelScores().getSquarredDifference(1.0, newDist.get(vName), 1.0);
-              v.SetEstimatedLabelScores(
-            		  CountMinSketchLabelManager.clone(newDist.get(vName)));
-            }
-						
-            // update entity labels on even iterations
-            if (!Flags.IsColumnNode(vName) && (iter % 2 == 1)) {
-              ++totalEntityUpdates;
-//              deltaLabelDiff += // ProbUtil.GetDifferenceNorm2Squarred(v.GetEstimatedLabelScores(),
-//            		  v.GetEstimatedLabelScores().getSquarredDifference(1.0, newDist.get(vName), 1.0);
-              v.SetEstimatedLabelScores(
-            		  CountMinSketchLabelManager.clone(newDist.get(vName)));
-            }
-         }
-       }
-      //}
-			
-      long endTime = System.currentTimeMillis();
-      timeInLastIteration = endTime - startTime;
-			
-      // clear map
-      newDist.clear();
-			
-      int totalNodes = g._vertices.size();
-//      double deltaLabelDiffPerNode = (1.0 * deltaLabelDiff) / totalNodes;
+  // neighbor sketches of a vertex and their multipliers, one per worker
+  // thread and reused for every vertex it updates
+  private static class NeighborScratch {
+    CountMinSketchLabel[] dists = new CountMinSketchLabel[0];
+    float[] mults = new float[0];
 
-      TObjectDoubleHashMap res = new TObjectDoubleHashMap();
-      res.put(Constants.GetMRRString(), Graph2.GetAverageTestMRR(g));
-      res.put(Constants.GetPrecisionString(), Graph2.GetAccuracy(g));
-      resultList.add(res);
-//      if (verbose) {
-//        System.out.println("after_iteration " + iter +
-//                           " objective: " + GetObjective(g, mu1, mu2, mu3) +
-//                           " accuracy: " + res.get(Constants.GetPrecisionString()) +
-//                           " rmse: " + GraphEval.GetRMSE(g) +
-//                           " time: " + (endTime - startTime) +
-//                           " label_diff_per_node: " + deltaLabelDiffPerNode +
-//                           " mrr_train: " + GraphEval.GetAverageTrainMRR(g) +
-//                           " mrr_test: " + res.get(Constants.GetMRRString()) +
-//                           " column_updates: " + totalColumnUpdates +
-//                           " entity_updates: " + totalEntityUpdates + "\n");
-//      }
-			
-//      if (false && deltaLabelDiffPerNode <= Constants.GetStoppingThreshold()) {
-//        if (useBipartitieOptimization) {
-//          if (iter > 1 && iter % 2 == 1) {
-//            MessagePrinter.Print("Convergence reached!!");
-//            break;
-//          }
-//        } else {
-//          MessagePrinter.Print("Convergence reached!!");
-//          break;
-//        }
-//      }
+    CountMinSketchLabel[] dists(int degree) {
+      if (dists.length < degree) {
+        dists = new CountMinSketchLabel[degree];
+        mults = new float[degree];
+      }
+      return (dists);
     }
-		
-    if (resultList.size() > 0) {
-      TObjectDoubleHashMap res =
-        (TObjectDoubleHashMap) resultList.get(resultList.size() - 1);
-      MessagePrinter.Print(Constants.GetPrecisionString() + " " +
-                           res.get(Constants.GetPrecisionString()));
-      MessagePrinter.Print(Constants.GetMRRString() + " " +
-                           res.get(Constants.GetMRRString()));
+  }
+
+  // make next[vi] (and nextTop[vi], if top labels are tracked) the
+  // estimated labels of v, and the ones v held the spares
+  private static void SwapLabels(Vertex2 v, int vi, CountMinSketchLabel[] next,
+                                 TopLabels[] nextTop) {
+    CountMinSketchLabel prev = v.GetEstimatedLabelScores();
+    v.SetEstimatedLabelScores(next[vi]);
+    next[vi] = prev;
+    if (nextTop != null) {
+      TopLabels prevTop = v.GetTopLabels();
+      v.SetTopLabels(nextTop[vi]);
+      nextTop[vi] = prevTop;
+    }
+  }
+
+  // Give every vertex its top k labels, chosen among all the labels of
+  // the alphabet, and return the labels injected into every vertex (null
+  // for a vertex without any). Scores every label once per vertex, as a
+  // single read out of all the sketches would.
+  private static int[][] InitTopLabels(Graph2 g, Vertex2[] vertices, int k) {
+    CountMinSketchLabelManager lm = g._labelManager;
+    int numLabels = lm.getAlphabet().size();
+    TopLabels.Selector selector = new TopLabels.Selector(lm);
+    int[][] injectedLabels = new int[vertices.length][];
+    float[] scores = null;
+    for (int vi = 0; vi < vertices.length; ++vi) {
+      Vertex2 v = vertices[vi];
+      selector.start();
+      for (int li = 0; li < numLabels; ++li) {
+        selector.add(li);
+      }
+      TopLabels top = new TopLabels(k);
+      selector.selectInto(v.GetEstimatedLabelScores(), top);
+      v.SetTopLabels(top);
+
+      CountMinSketchLabel injected = v.GetInjectedLabelScores();
+      if (injected != null && !CountMinSketchLabelManager.isEmpty(injected)) {
+        scores = lm.getScores(injected, scores);
+        int count = 0;
+        for (int li = 0; li < numLabels; ++li) {
+          if (scores[li] > 0) { ++count; }
+        }
+        injectedLabels[vi] = new int[count];
+        count = 0;
+        for (int li = 0; li < numLabels; ++li) {
+          if (scores[li] > 0) { injectedLabels[vi][count++] = li; }
+        }
+      }
+    }
+    return (injectedLabels);
+  }
+
+  // select the new top labels of v, whose new sketch is dist, among the
+  // top labels of its neighbors, its injected labels and the dummy label
+  private static void SelectTopLabels(Graph2 g, Vertex2 v, CountMinSketchLabel dist,
+                                      int[] injectedLabels, int dummyLabel,
+                                      TopLabels.Selector selector, TopLabels result) {
+    selector.start();
+    Object[] neighNames = v.GetNeighborNames();
+    for (int ni = 0; ni < neighNames.length; ++ni) {
+      TopLabels neighTop = g._vertices.get((String) neighNames[ni]).GetTopLabels();
+      selector.add(neighTop.labels, neighTop.size);
+    }
+    if (injectedLabels != null) {
+      selector.add(injectedLabels, injectedLabels.length);
     }
+    selector.add(dummyLabel);
+    selector.selectInto(dist, result);
   }
 	
 //  private static <T> double GetObjective(Graph2 g, double mu1, double mu2, double mu3) {
@@ -0,0 +1,203 @@
+package upenn.junto.algorithm.mad_sketch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import upenn.junto.util.AsyncFileWriter;
+import upenn.junto.util.MessagePrinter;
+import upenn.junto.util.RyanAlphabet;
+
+/**
+ * Checkpoints of the estimated label sketches of a MADSketch run,
+ * written every checkpointFrequency iterations in the background (see
+ * AsyncFileWriter), and read back to resume the run after the
+ * iteration at which the checkpoint was taken.
+ *
+ * A checkpoint holds the raw sketch tables, which are only meaningful
+ * with the same hash functions and label indices; these are stored
+ * too, and resuming fails unless they match, i.e. unless the graph was
+ * loaded with the same sketch_seed and the same label files. It also
+ * holds the mode and mu values of the run, so that it is not resumed by
+ * a different run.
+ */
+public class SketchCheckpoint {
+
+  public static final int MAGIC = 0x4a4e4353;
+  public static final int VERSION = 2;
+
+  private final String filename;
+  private final int frequency;
+  private final AsyncFileWriter writer;
+  private final String mode;
+  private final double[] mus;
+
+  // copy of the tables being written, reused by every checkpoint
+  private String[] names = null;
+  private float[][] buffer = null;
+
+  public SketchCheckpoint(String filename, int frequency,
+                          String mode, double mu1, double mu2, double mu3) {
+    this.filename = filename;
+    this.frequency = frequency;
+    this.mode = mode;
+    this.mus = new double[] { mu1, mu2, mu3 };
+    this.writer = (filename != null && frequency > 0) ? new AsyncFileWriter(filename) : null;
+  }
+
+  // Restore the estimated sketches from the checkpoint, if any, and
+  // return the iteration it was taken after, or 0 to start from scratch.
+  public int resume(Graph2 g) {
+    if (filename == null || !new File(filename).exists()) {
+      MessagePrinter.Print("No checkpoint to resume from, starting from scratch");
+      return (0);
+    }
+    try {
+      int iter = Read(filename, g, mode, mus);
+      MessagePrinter.Print("Resuming from checkpoint " + filename + " after iteration " + iter);
+      return (iter);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to read checkpoint " + filename, e);
+    }
+  }
+
+  public void afterIteration(final int iter, final Graph2 g) {
+    if (writer == null || iter % frequency != 0) {
+      return;
+    }
+
+    // the previous checkpoint must be written before its buffer is reused
+    writer.await();
+    if (names == null) {
+      names = g._vertices.keySet().toArray(new String[0]);
+      buffer = new float[names.length][];
+    }
+    for (int vi = 0; vi < names.length; ++vi) {
+      CountMinSketchLabel est = g._vertices.get(names[vi]).GetEstimatedLabelScores();
+      if (buffer[vi] == null) {
+        buffer[vi] = new float[est.depth * est.width];
+      }
+      System.arraycopy(est.table, 0, buffer[vi], 0, est.table.length);
+    }
+
+    writer.submit(new AsyncFileWriter.Payload() {
+      public void writeTo(DataOutputStream out) throws IOException {
+        Write(out, iter, mode, mus, g._labelManager, names, buffer);
+      }
+    });
+  }
+
+  // wait for the last checkpoint to be written
+  public void close() {
+    if (writer != null) {
+      writer.close();
+    }
+  }
+
+  private static void Write(DataOutputStream out, int iter, String mode, double[] mus,
+                            CountMinSketchLabelManager lm,
+                            String[] names, float[][] tables) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(iter);
+    out.writeUTF(mode);
+    for (int i = 0; i < mus.length; ++i) {
+      out.writeDouble(mus[i]);
+    }
+    WriteSketchParams(out, lm);
+
+    out.writeInt(names.length);
+    for (int vi = 0; vi < names.length; ++vi) {
+      out.writeUTF(names[vi]);
+      for (int i = 0; i < tables[vi].length; ++i) {
+        out.writeFloat(tables[vi][i]);
+      }
+    }
+  }
+
+  // the sketch dimensions, hash coefficients and labels by index
+  private static void WriteSketchParams(DataOutputStream out, CountMinSketchLabelManager lm)
+    throws IOException {
+    out.writeInt(lm.cms.depth);
+    out.writeInt(lm.cms.width);
+    int[] hashA = lm.cms.getHashA();
+    for (int di = 0; di < hashA.length; ++di) {
+      out.writeInt(hashA[di]);
+    }
+    RyanAlphabet la = lm.getAlphabet();
+    out.writeInt(la.size());
+    Iterator labIter = la.iterator();
+    while (labIter.hasNext()) {
+      out.writeUTF((String) labIter.next());
+    }
+  }
+
+  private static int Read(String filename, Graph2 g, String mode, double[] mus)
+    throws IOException {
+    DataInputStream in =
+      new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 20));
+    try {
+      if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new IOException(filename + " is not a sketch checkpoint");
+      }
+      int iter = in.readInt();
+      String takenBy = in.readUTF();
+      double[] takenWith = new double[mus.length];
+      for (int i = 0; i < takenWith.length; ++i) {
+        takenWith[i] = in.readDouble();
+      }
+      if (!takenBy.equals(mode) || !Arrays.equals(takenWith, mus)) {
+        throw new IOException("Checkpoint " + filename + " was taken in mode " + takenBy +
+                              " with mu values " + Arrays.toString(takenWith) +
+                              ", not in mode " + mode + " with " + Arrays.toString(mus));
+      }
+
+      CountMinSketchLabelManager lm = g._labelManager;
+      int depth = in.readInt();
+      int width = in.readInt();
+      int[] hashA = new int[depth];
+      for (int di = 0; di < depth; ++di) {
+        hashA[di] = in.readInt();
+      }
+      boolean sameHashes = depth == lm.cms.depth && width == lm.cms.width &&
+        Arrays.equals(hashA, lm.cms.getHashA());
+      RyanAlphabet la = lm.getAlphabet();
+      int numLabels = in.readInt();
+      sameHashes = sameHashes && numLabels == la.size();
+      for (int li = 0; li < numLabels; ++li) {
+        String label = in.readUTF();
+        sameHashes = sameHashes && li < la.size() && label.equals(la.lookupObject(li));
+      }
+      if (!sameHashes) {
+        throw new IOException("Checkpoint " + filename + " was taken with other sketch " +
+                              "hash functions or labels; set sketch_seed to resume");
+      }
+
+      int numVertices = in.readInt();
+      if (numVertices != g._vertices.size()) {
+        throw new IOException("Checkpoint " + filename + " was taken on a different graph");
+      }
+      for (int vi = 0; vi < numVertices; ++vi) {
+        String name = in.readUTF();
+        Vertex2 v = g._vertices.get(name);
+        if (v == null) {
+          throw new IOException("Checkpoint " + filename + " holds unknown node " + name);
+        }
+        CountMinSketchLabel est = new CountMinSketchLabel(depth, width);
+        for (int i = 0; i < est.table.length; ++i) {
+          est.table[i] = in.readFloat();
+        }
+        v.SetEstimatedLabelScores(est);
+      }
+      return (iter);
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+package upenn.junto.algorithm.mad_sketch;
+
+import java.util.Arrays;
+
+import upenn.junto.util.TopK;
+
+/**
+ * The (at most) k labels of a vertex with the highest estimated scores,
+ * as label indices (see CountMinSketchLabelManager.getAlphabet), best
+ * first. With sketch_top_labels, MADSketch.Run keeps them up to date
+ * when asked to keep the top k labels, so that reading out the labels
+ * of a vertex only scores these in its sketch instead of every label in
+ * the alphabet.
+ *
+ * This is an approximation: the new top labels of a vertex are chosen
+ * among the top labels of its neighbors, its injected labels and the
+ * dummy label only, but a label just outside the top k of every
+ * neighbor may add up to one of the top k of the vertex. The labels read
+ * out, and the MRR and accuracy computed from them, may then differ
+ * from the true top k of the sketch, which is only guaranteed when k is
+ * at least the number of labels.
+ */
+public class TopLabels {
+  public final int[] labels;
+  public int size;
+
+  public TopLabels(int k) {
+    labels = new int[k];
+  }
+
+  /**
+   * Scratch space to select top labels, one per thread.
+   */
+  public static class Selector {
+    private final CountMinSketchLabelManager lm;
+    // candidates of the current vertex, deduplicated through the
+    // stamp of the vertex in seen
+    private int[] candidates = new int[0];
+    private double[] scores = new double[0];
+    private int[] order = new int[0];
+    private int[] seen = new int[0];
+    private int stamp = 0;
+    private int numCandidates;
+
+    public Selector(CountMinSketchLabelManager lm) {
+      this.lm = lm;
+    }
+
+    public void start() {
+      numCandidates = 0;
+      if (++stamp == Integer.MAX_VALUE) {
+        Arrays.fill(seen, 0);
+        stamp = 1;
+      }
+    }
+
+    public void add(int label) {
+      if (label >= seen.length) {
+        seen = Arrays.copyOf(seen, Math.max(label + 1, 2 * seen.length));
+      }
+      if (seen[label] == stamp) {
+        return;
+      }
+      seen[label] = stamp;
+      if (numCandidates == candidates.length) {
+        candidates = Arrays.copyOf(candidates, Math.max(16, 2 * numCandidates));
+      }
+      candidates[numCandidates++] = label;
+    }
+
+    public void add(int[] labels, int size) {
+      for (int i = 0; i < size; ++i) {
+        add(labels[i]);
+      }
+    }
+
+    // keep the candidates with the highest positive scores in lab
+    public void selectInto(CountMinSketchLabel lab, TopLabels result) {
+      if (scores.length < numCandidates) {
+        scores = new double[candidates.length];
+        order = new int[candidates.length];
+      }
+      for (int ci = 0; ci < numCandidates; ++ci) {
+        scores[ci] = lm.getScore(lab, candidates[ci]);
+      }
+      result.size = TopK.Select(scores, null, numCandidates,
+                                result.labels.length, order);
+      for (int ri = 0; ri < result.size; ++ri) {
+        result.labels[ri] = candidates[order[ri]];
+      }
+    }
+  }
+}
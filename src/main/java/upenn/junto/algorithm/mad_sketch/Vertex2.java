@@ -45,6 +45,10 @@ public class Vertex2 {
   // labels & their scores estimated by the algorithm.
   // only positive scores are allowed.
   private CountMinSketchLabel estimated_labels_;
+  
+  // the labels with the highest estimated scores, if tracked (see
+  // TopLabels)
+  private TopLabels top_labels_;
 	
   // neighbors of the vertex along with edge/association
   // weight
@@ -223,6 +227,22 @@ public class Vertex2 {
     estimated_labels_ = m;
   }
 	
+  public TopLabels GetTopLabels() {
+    return this.top_labels_;
+  }
+	
+  public void SetTopLabels(TopLabels top) {
+    top_labels_ = top;
+  }
+	
+  // the positive estimated label scores, of the top labels only if they
+  // are tracked
+  public TObjectDoubleHashMap DecodeEstimatedLabelScores() {
+    return (top_labels_ != null ?
+            labelManager.getLabelScores(estimated_labels_, top_labels_) :
+            labelManager.getLabelScores(estimated_labels_));
+  }
+	
   public static String GetPrettyPrintMap(TObjectDoubleHashMap m, RyanAlphabet la) {		
     ArrayList<ObjectDoublePair> sortedMap = CollectionUtil2.ReverseSortMap(m);
     String op = "";
@@ -473,8 +493,13 @@ public class Vertex2 {
   }
 	
   public double GetMRR() {
+    return (GetMRR(DecodeEstimatedLabelScores()));
+  }
+	
+  // as above, given the label scores decoded from the estimated labels
+  public double GetMRR(TObjectDoubleHashMap estimatedScores) {
     ArrayList<ObjectDoublePair> sortedMap =
-    		CollectionUtil2.ReverseSortMap(labelManager.getLabelScores(estimated_labels_));
+    		CollectionUtil2.ReverseSortMap(estimatedScores);
 
     double mrr = 0;
     int goldRank = 0;
@@ -4,21 +4,30 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import gnu.trove.list.array.TDoubleArrayList;
 import gnu.trove.map.hash.TObjectDoubleHashMap;
 
 import upenn.junto.config.ConfigReader;
+import upenn.junto.config.GraphConfigLoader;
+import upenn.junto.graph.Graph;
 import upenn.junto.util.CollectionUtil;
 import upenn.junto.util.Constants;
 import upenn.junto.util.Defaults;
 import upenn.junto.util.MessagePrinter;
+import upenn.junto.util.RunLogStream;
 
 public class ConfigTuner {
 
@@ -69,6 +78,10 @@ public class ConfigTuner {
     boolean skipExistingConfigs =
       Defaults.GetValueOrDefault((String) tuningConfig.get("skip_existing_config"), false); 
 
+    // number of configurations run at the same time
+    int parallelRuns =
+      Defaults.GetValueOrDefault((String) tuningConfig.get("parallel_runs"), 1);
+
     // config file with post-tuning testing details (i.e. final test file etc.) 
     String finalTestConfigFile = (String) tuningConfig.get("final_config_file");
     tuningConfig.remove("final_config_file");
@@ -76,42 +89,42 @@ public class ConfigTuner {
     // generate all possible combinations (non unique)
     ArrayList<Hashtable> configs = GetAllCombinations(tuningConfig);
 		
-    ArrayList<ArrayList> results = new ArrayList<ArrayList>();
     HashSet<String> uniqueConfigs = new HashSet<String>();
 		
     // map from algo to the current best scores and the corresponding config
     HashMap<String,Hashtable> algo2BestConfig = new HashMap<String,Hashtable>(); 
     TObjectDoubleHashMap algo2BestScore = new TObjectDoubleHashMap(); 
 		
-    // store console
-    PrintStream consoleOut = System.out;
-    PrintStream consoleErr = System.err;
+    // the log printed by each run, using System.out.println or a
+    // console logger, is directed to its own log file
+    RunLogStream runLogs = RunLogStream.Install();
+    SharedGraphs graphs = new SharedGraphs();
 
-    for (int ci = 0; ci < configs.size(); ++ci) {
-      Hashtable c = configs.get(ci);
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelRuns));
+    ArrayList<Hashtable> submitted = new ArrayList<Hashtable>();
+    ArrayList<String> logFiles = new ArrayList<String>();
+    ArrayList<Future<ArrayList>> runs = new ArrayList<Future<ArrayList>>();
+    try {
+      for (int ci = 0; ci < configs.size(); ++ci) {
+        Hashtable c = configs.get(ci);
 			
-      // if this a post-tune config, then generate seed and test files
-      if (Defaults.GetValueOrDefault((String) c.get("is_final_run"), false)) {
-        String splitId = Defaults.GetValueOrDie(c, "split_id");
-        c.put("seed_file", c.remove("seed_base") + "." + splitId + ".train");
-        c.put("test_file", c.remove("test_base") + "." + splitId + ".test");
-      }
+        // if this a post-tune config, then generate seed and test files
+        if (Defaults.GetValueOrDefault((String) c.get("is_final_run"), false)) {
+          String splitId = Defaults.GetValueOrDie(c, "split_id");
+          c.put("seed_file", c.remove("seed_base") + "." + splitId + ".train");
+          c.put("test_file", c.remove("test_base") + "." + splitId + ".test");
+        }
 			
-      // output file name is considered a unique identifier of a configuration
-      String outputFile = GetOutputFileName(c, opDir, idenStr);
-      if (uniqueConfigs.contains(outputFile)) {
-        continue;
-      }
-      uniqueConfigs.add(outputFile);
-      if (opDir != null) {
-        c.put("output_file", outputFile);
-      }
-
-      System.out.println("Working with config: " + c.toString());
+        // output file name is considered a unique identifier of a configuration
+        String outputFile = GetOutputFileName(c, opDir, idenStr);
+        if (uniqueConfigs.contains(outputFile)) {
+          continue;
+        }
+        uniqueConfigs.add(outputFile);
+        if (opDir != null) {
+          c.put("output_file", outputFile);
+        }
 
-      try {
-        // reset System.out so that the log printed using System.out.println
-        // is directed to the right log file
         String logFile = GetLogFileName(c, logDir, idenStr);
 				
         // if the log file exists, then don't repeat
@@ -119,29 +132,32 @@ public class ConfigTuner {
         if (skipExistingConfigs && lf.exists()) {
           continue;
         }
-				
-        FileOutputStream fos = new FileOutputStream(new File(logFile));
-        PrintStream ps = new PrintStream(fos);
-        System.setOut(ps);
-        System.setErr(ps);
-			
-        results.add(new ArrayList());
-        JuntoConfigRunner.apply(c, results.get(results.size() - 1));
-        UpdateBestConfig((String) c.get("algo"), algo2BestScore,
-                         algo2BestConfig, c, results.get(results.size() - 1));
-
-        // reset System.out back to the original console value
-        System.setOut(consoleOut);
-        System.setErr(consoleErr);
-				
-        // close log file
-        fos.close();
 
-      } catch (FileNotFoundException fnfe) {
-        fnfe.printStackTrace();
-      } catch (IOException ioe) {
-        ioe.printStackTrace();
+        System.out.println("Working with config: " + c.toString());
+        submitted.add(c);
+        logFiles.add(logFile);
+        graphs.expect(c);
+      }
+
+      // submitted only once all the runs are known, so that a graph is
+      // not dropped by its first run while later runs still need it
+      for (int ri = 0; ri < submitted.size(); ++ri) {
+        runs.add(executor.submit(new ConfigRun(submitted.get(ri), logFiles.get(ri),
+                                               graphs, runLogs)));
+      }
+
+      // the runs are considered in config order, whatever the order they
+      // finish in, so that ties between configs are broken as before
+      for (int ri = 0; ri < runs.size(); ++ri) {
+        ArrayList result = Wait(runs.get(ri));
+        if (result != null) {
+          Hashtable c = submitted.get(ri);
+          UpdateBestConfig((String) c.get("algo"), algo2BestScore,
+                           algo2BestConfig, c, result);
+        }
       }
+    } finally {
+      executor.shutdownNow();
     }
 		
     // print out the best parameters for each algorithm
@@ -163,6 +179,115 @@ public class ConfigTuner {
       }
     }
   }
+
+  // A run of one configuration, on the graph shared by all the
+  // configurations which build the same graph, printing to its own log
+  // file. Returns the per-iteration results, or null if the log file
+  // can't be created.
+  private static class ConfigRun implements Callable<ArrayList> {
+    private final Hashtable config;
+    private final String logFile;
+    private final SharedGraphs graphs;
+    private final RunLogStream runLogs;
+
+    ConfigRun(Hashtable config, String logFile, SharedGraphs graphs, RunLogStream runLogs) {
+      this.config = config;
+      this.logFile = logFile;
+      this.graphs = graphs;
+      this.runLogs = runLogs;
+    }
+
+    public ArrayList call() throws IOException {
+      try {
+        FileOutputStream log;
+        try {
+          log = new FileOutputStream(new File(logFile));
+        } catch (FileNotFoundException fnfe) {
+          fnfe.printStackTrace();
+          return (null);
+        }
+
+        runLogs.bind(log);
+        try {
+          System.out.println(CollectionUtil.Map2StringPrettyPrint(config));
+          ArrayList result = new ArrayList();
+          JuntoConfigRunner.apply(config, result, graphs.get(config));
+          return (result);
+        } finally {
+          runLogs.bind(null);
+          log.close();
+        }
+      } finally {
+        graphs.release(config);
+      }
+    }
+  }
+
+  // The graphs of the runs, one for each distinct set of graph building
+  // options (see GraphConfigLoader.graphKey). A graph is loaded by the
+  // first run which needs it, while the other runs needing it wait, and
+  // is dropped when the last run expected to use it is done: the runs
+  // only read it.
+  private static class SharedGraphs {
+    private final ConcurrentHashMap<String,FutureTask<Graph>> graphs =
+      new ConcurrentHashMap<String,FutureTask<Graph>>();
+    // number of runs yet to finish, by graph
+    private final HashMap<String,Integer> pending = new HashMap<String,Integer>();
+
+    // count a run which will use the graph of config
+    synchronized void expect(Hashtable config) {
+      String key = GraphConfigLoader.graphKey(config);
+      Integer runs = pending.get(key);
+      pending.put(key, runs == null ? 1 : runs + 1);
+    }
+
+    // a run expected to use the graph of config is done with it
+    synchronized void release(Hashtable config) {
+      String key = GraphConfigLoader.graphKey(config);
+      int runs = pending.get(key) - 1;
+      if (runs == 0) {
+        pending.remove(key);
+        graphs.remove(key);
+      } else {
+        pending.put(key, runs);
+      }
+    }
+
+    Graph get(final Hashtable config) {
+      FutureTask<Graph> load = new FutureTask<Graph>(new Callable<Graph>() {
+        public Graph call() {
+          Graph graph = GraphConfigLoader.apply(config);
+          // build the CSR form before the runs share the graph
+          graph.csr();
+          return (graph);
+        }
+      });
+      FutureTask<Graph> loaded = graphs.putIfAbsent(GraphConfigLoader.graphKey(config), load);
+      if (loaded == null) {
+        load.run();
+        loaded = load;
+      }
+      return (Wait(loaded));
+    }
+  }
+
+  // the result of a task, rethrowing what made it fail
+  private static <T> T Wait(Future<T> task) {
+    try {
+      return (task.get());
+    } catch (InterruptedException ie) {
+      throw new RuntimeException(ie);
+    } catch (ExecutionException ee) {
+      Throwable cause = ee.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
+  }
 	
   private static String GetOutputFileName(Hashtable c, String opDir, String idenStr) {
     String outputFile = " ";
@@ -268,8 +393,8 @@ public class ConfigTuner {
                                        ArrayList perIterMultiScores) {
     TDoubleArrayList perIterScores = new TDoubleArrayList();
     for (int i = 1; i < perIterMultiScores.size(); ++i) {
-      TObjectDoubleHashMap r = (TObjectDoubleHashMap) perIterMultiScores.get(i);
-      perIterScores.add(r.get(Constants.GetMRRString()));
+      scala.collection.Map r = (scala.collection.Map) perIterMultiScores.get(i);
+      perIterScores.add((Double) r.apply(Constants.GetMRRString()));
     }
 
     if (perIterScores.size() > 0) {
@@ -1,7 +1,12 @@
 package upenn.junto.eval;
 
 import upenn.junto.graph.Graph;
+import upenn.junto.graph.LabelState;
 import upenn.junto.graph.Vertex;
+import upenn.junto.util.LabelAccumulator;
+import upenn.junto.util.LabelAlphabet;
+import upenn.junto.util.LabelStore;
+import upenn.junto.util.ProbUtil;
 
 import java.util.Iterator;
 
@@ -88,4 +93,89 @@ public class GraphEval {
     return (Math.sqrt((1.0 * totalMSE) / totalCount));
   }
   
+
+  // The methods below evaluate a single vertex of a LabelState, i.e.
+  // while a propagation algorithm is running. See LabelStateEvaluator
+  // for the metrics over the whole graph.
+
+  // Reciprocal rank of the highest ranked gold label of the vertex,
+  // ranking the estimated labels (minus the dummy label) from large to
+  // small score, ties in stored order. The rank is found by counting
+  // the labels which outrank the best gold label, without sorting.
+  public static double GetMRR(LabelState st, int vi) {
+    LabelStore estimated = st.estimated();
+    LabelStore gold = st.gold();
+
+    // position of the highest ranked gold label
+    int sz = estimated.size(vi);
+    int best = -1;
+    double bestScore = 0;
+    for (int i = 0; i < sz; ++i) {
+      if (IsRanked(estimated, vi, i) &&
+          gold.get(vi, estimated.labelAt(vi, i)) != 0) {
+        double score = estimated.scoreAt(vi, i);
+        if (best < 0 || score > bestScore) {
+          best = i;
+          bestScore = score;
+        }
+      }
+    }
+    if (best < 0) {
+      return (0);
+    }
+
+    int rank = 1;
+    for (int i = 0; i < sz; ++i) {
+      if (IsRanked(estimated, vi, i)) {
+        double score = estimated.scoreAt(vi, i);
+        if (score > bestScore || (score == bestScore && i < best)) {
+          ++rank;
+        }
+      }
+    }
+    return (1.0 / rank);
+  }
+
+  private static boolean IsRanked(LabelStore estimated, int vi, int i) {
+    return (estimated.labelAt(vi, i) != LabelAlphabet.DUMMY_LABEL &&
+            estimated.scoreAt(vi, i) != 0);
+  }
+
+  // mean squared error of the normalized estimated scores (minus the
+  // dummy label) with respect to the gold labels of the vertex
+  public static double GetMSE(LabelState st, int vi, LabelAccumulator scratch) {
+    LabelStore estimated = st.estimated();
+    LabelStore gold = st.gold();
+
+    scratch.clear();
+    int sz = estimated.size(vi);
+    for (int i = 0; i < sz; ++i) {
+      double score = estimated.scoreAt(vi, i);
+      if (estimated.labelAt(vi, i) != LabelAlphabet.DUMMY_LABEL && score != 0) {
+        scratch.put(estimated.labelAt(vi, i), score);
+      }
+    }
+    ProbUtil.Normalize(scratch);
+
+    double mse = 0;
+    int gsz = gold.size(vi);
+    for (int i = 0; i < gsz; ++i) {
+      double goldScore = gold.scoreAt(vi, i);
+      if (goldScore != 0) {
+        double diff = goldScore - scratch.get(gold.labelAt(vi, i));
+        mse += diff * diff;
+      }
+    }
+
+    // estimated labels which are not gold labels
+    for (int i = 0; i < scratch.size(); ++i) {
+      if (gold.get(vi, scratch.labelAt(i)) == 0) {
+        mse += scratch.scoreAt(i) * scratch.scoreAt(i);
+      }
+    }
+    scratch.clear();
+
+    return (mse);
+  }
+
 }
@@ -0,0 +1,101 @@
+package upenn.junto.eval;
+
+import upenn.junto.graph.CsrGraph;
+import upenn.junto.graph.LabelState;
+import upenn.junto.graph.Vertex;
+import upenn.junto.util.LabelAccumulator;
+
+/**
+ * Computes the evaluation metrics of a run (accuracy, test and train
+ * MRR, RMSE) from the estimated scores of a LabelState in a single pass.
+ * The test and seed vertices are indexed once, when the evaluator is
+ * created, and each of them is visited once per evaluation: the MRR of
+ * a vertex that is both a test and a seed vertex is only computed once.
+ */
+public class LabelStateEvaluator {
+
+  public static class Result {
+    public final double accuracy;
+    public final double testMRR;
+    public final double trainMRR;
+    public final double rmse;
+
+    public Result(double accuracy, double testMRR, double trainMRR, double rmse) {
+      this.accuracy = accuracy;
+      this.testMRR = testMRR;
+      this.trainMRR = trainMRR;
+      this.rmse = rmse;
+    }
+  }
+
+  private final LabelState st;
+  // ids of the vertices which are test or seed vertices, in id order
+  private final int[] evalIds;
+  private final boolean[] isTest;
+  private final boolean[] isSeed;
+  private final int totalTest;
+  private final int totalSeed;
+  private final LabelAccumulator scratch;
+
+  public LabelStateEvaluator(LabelState st) {
+    this.st = st;
+    CsrGraph csr = st.csr();
+
+    int n = 0;
+    for (int vi = 0; vi < csr.numVertices(); ++vi) {
+      Vertex v = csr.vertices()[vi];
+      if (v.isTestNode() || v.isSeedNode()) {
+        ++n;
+      }
+    }
+
+    evalIds = new int[n];
+    isTest = new boolean[n];
+    isSeed = new boolean[n];
+    int test = 0;
+    int seed = 0;
+    n = 0;
+    for (int vi = 0; vi < csr.numVertices(); ++vi) {
+      Vertex v = csr.vertices()[vi];
+      if (v.isTestNode() || v.isSeedNode()) {
+        evalIds[n] = vi;
+        isTest[n] = v.isTestNode();
+        isSeed[n] = v.isSeedNode();
+        if (isTest[n]) { ++test; }
+        if (isSeed[n]) { ++seed; }
+        ++n;
+      }
+    }
+    totalTest = test;
+    totalSeed = seed;
+    scratch = st.newAccumulator();
+  }
+
+  public Result Evaluate() {
+    int correct_doc_cnt = 0;
+    double test_mrr_sum = 0;
+    double train_mrr_sum = 0;
+    double totalMSE = 0;
+
+    for (int i = 0; i < evalIds.length; ++i) {
+      int vi = evalIds[i];
+      double mrr = GraphEval.GetMRR(st, vi);
+      if (isTest[i]) {
+        test_mrr_sum += mrr;
+        if (mrr == 1) {
+          ++correct_doc_cnt;
+        }
+        totalMSE += GraphEval.GetMSE(st, vi, scratch);
+      }
+      if (isSeed[i]) {
+        train_mrr_sum += mrr;
+      }
+    }
+
+    return (new Result((1.0 * correct_doc_cnt) / totalTest,
+                       (1.0 * test_mrr_sum) / totalTest,
+                       (1.0 * train_mrr_sum) / totalSeed,
+                       Math.sqrt((1.0 * totalMSE) / totalTest)));
+  }
+
+}
@@ -0,0 +1,101 @@
+package upenn.junto.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Writes a file in a background thread, e.g. a checkpoint of the label
+ * scores, so that the caller can carry on with its work. At most one
+ * write is in flight: submit waits for the previous one first, so the
+ * caller may reuse the buffers a payload reads once submit returns for
+ * the next payload. The file is written to a temporary file which is
+ * renamed when complete, so a crash never leaves a partial file behind.
+ */
+public class AsyncFileWriter {
+
+  // writes the contents of the file; runs in the background thread
+  public interface Payload {
+    void writeTo(DataOutputStream out) throws IOException;
+  }
+
+  private final File file;
+  private final ExecutorService executor;
+  private Future<?> pending = null;
+
+  public AsyncFileWriter(String filename) {
+    this.file = new File(filename);
+    this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, "async-file-writer");
+        t.setDaemon(true);
+        return (t);
+      }
+    });
+  }
+
+  // wait for the write in flight, if any; a failed write is rethrown
+  public void await() {
+    if (pending == null) {
+      return;
+    }
+    try {
+      pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Unable to write " + file, e.getCause());
+    } finally {
+      pending = null;
+    }
+  }
+
+  public void submit(final Payload payload) {
+    await();
+    pending = executor.submit(new Runnable() {
+      public void run() {
+        try {
+          Write(file, payload);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+  }
+
+  // wait for the last write, and stop the background thread
+  public void close() {
+    try {
+      await();
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  // write the file in the calling thread
+  public static void Write(File file, Payload payload) throws IOException {
+    File tmp = new File(file.getPath() + ".tmp");
+    DataOutputStream out =
+      new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20));
+    try {
+      payload.writeTo(out);
+    } finally {
+      out.close();
+    }
+    // replaces the previous file in one step, so that it is there until
+    // the new one is
+    Files.move(tmp.toPath(), file.toPath(),
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+}
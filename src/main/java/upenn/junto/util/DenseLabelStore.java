@@ -0,0 +1,70 @@
+package upenn.junto.util;
+
+import java.util.Arrays;
+
+/**
+ * LabelStore keeping one flat row of numLabels doubles per vertex, all
+ * rows laid out contiguously in a single array.
+ */
+public class DenseLabelStore extends LabelStore {
+  private final double[] scores;
+
+  public DenseLabelStore(int numRows, int numLabels) {
+    super(numRows, numLabels);
+    this.scores = new double[numRows * numLabels];
+  }
+
+  // the underlying array; row r occupies [r * numLabels, (r + 1) * numLabels)
+  public double[] getScores() {
+    return scores;
+  }
+
+  public int size(int row) {
+    return numLabels;
+  }
+
+  public int labelAt(int row, int i) {
+    return i;
+  }
+
+  public double scoreAt(int row, int i) {
+    return scores[row * numLabels + i];
+  }
+
+  public double get(int row, int label) {
+    return scores[row * numLabels + label];
+  }
+
+  public void clear(int row) {
+    int base = row * numLabels;
+    Arrays.fill(scores, base, base + numLabels, 0.0);
+  }
+
+  public void set(int row, LabelAccumulator acc) {
+    int base = row * numLabels;
+    Arrays.fill(scores, base, base + numLabels, 0.0);
+    int sz = acc.size();
+    for (int i = 0; i < sz; ++i) {
+      scores[base + acc.labelAt(i)] = acc.scoreAt(i);
+    }
+  }
+
+  public void copyRow(int row, LabelStore src, int srcRow) {
+    if (src instanceof DenseLabelStore) {
+      System.arraycopy(((DenseLabelStore) src).scores, srcRow * numLabels,
+                       scores, row * numLabels, numLabels);
+    } else {
+      clear(row);
+      int base = row * numLabels;
+      int sz = src.size(srcRow);
+      for (int i = 0; i < sz; ++i) {
+        scores[base + src.labelAt(srcRow, i)] = src.scoreAt(srcRow, i);
+      }
+    }
+  }
+
+  public LabelStore createEmpty() {
+    return (new DenseLabelStore(numRows, numLabels));
+  }
+
+}
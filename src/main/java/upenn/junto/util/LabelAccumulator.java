@@ -0,0 +1,113 @@
+package upenn.junto.util;
+
+/**
+ * Scratch label distribution used while computing the new scores of a
+ * single vertex. Scores are kept in a dense array indexed by label id,
+ * and the ids that have been touched are remembered in insertion order,
+ * so adding a score is O(1) and iterating and clearing are proportional
+ * to the number of labels actually present. An accumulator is reused
+ * across vertices and is not thread-safe; each worker needs its own.
+ */
+public class LabelAccumulator {
+  private final double[] scores;
+  private final boolean[] present;
+  private final int[] labels;
+  private int size;
+  // buffer for top-K selection, allocated on first use
+  private int[] selected;
+
+  public LabelAccumulator(int numLabels) {
+    this.scores = new double[numLabels];
+    this.present = new boolean[numLabels];
+    this.labels = new int[numLabels];
+    this.size = 0;
+  }
+
+  public int numLabels() {
+    return scores.length;
+  }
+
+  // number of labels present
+  public int size() {
+    return size;
+  }
+
+  // id of the i-th label present, in insertion order
+  public int labelAt(int i) {
+    return labels[i];
+  }
+
+  // score of the i-th label present, in insertion order
+  public double scoreAt(int i) {
+    return scores[labels[i]];
+  }
+
+  public void setScoreAt(int i, double score) {
+    scores[labels[i]] = score;
+  }
+
+  public boolean contains(int label) {
+    return present[label];
+  }
+
+  public double get(int label) {
+    return scores[label];
+  }
+
+  // this method returns score[label] += value
+  public void add(int label, double value) {
+    if (!present[label]) {
+      present[label] = true;
+      labels[size++] = label;
+    }
+    scores[label] += value;
+  }
+
+  public void put(int label, double value) {
+    if (!present[label]) {
+      present[label] = true;
+      labels[size++] = label;
+    }
+    scores[label] = value;
+  }
+
+  // keep only the first count labels of kept, in that order. All of
+  // them must currently be present.
+  public void retain(int[] kept, int count) {
+    for (int i = 0; i < size; ++i) {
+      present[labels[i]] = false;
+    }
+    for (int i = 0; i < count; ++i) {
+      present[kept[i]] = true;
+    }
+    for (int i = 0; i < size; ++i) {
+      if (!present[labels[i]]) {
+        scores[labels[i]] = 0;
+      }
+    }
+    System.arraycopy(kept, 0, labels, 0, count);
+    size = count;
+  }
+
+  // keep only the (at most) k highest scoring labels with a positive
+  // score, highest first; ties keep their insertion order.
+  public void keepTop(int k) {
+    if (selected == null) {
+      selected = new int[scores.length];
+    }
+    int count = TopK.Select(scores, labels, size, k, selected);
+    for (int i = 0; i < count; ++i) {
+      selected[i] = labels[selected[i]];
+    }
+    retain(selected, count);
+  }
+
+  public void clear() {
+    for (int i = 0; i < size; ++i) {
+      scores[labels[i]] = 0;
+      present[labels[i]] = false;
+    }
+    size = 0;
+  }
+
+}
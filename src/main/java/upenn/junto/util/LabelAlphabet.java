@@ -0,0 +1,32 @@
+package upenn.junto.util;
+
+/**
+ * Alphabet of label strings, used to address label scores by integer
+ * id in the primitive label stores. The dummy label is always present
+ * and always has id 0.
+ */
+public class LabelAlphabet extends RyanAlphabet {
+
+  public static final int DUMMY_LABEL = 0;
+
+  public LabelAlphabet() {
+    super(String.class);
+    lookupIndex(Constants.GetDummyLabel(), true);
+  }
+
+  // returns the id of the label, adding it to the alphabet if needed
+  public int addLabel(String label) {
+    return (lookupIndex(label, true));
+  }
+
+  // returns -1 if the label is not present in the alphabet
+  public int getLabelId(String label) {
+    return (contains(label) ? lookupIndex(label, false) : -1);
+  }
+
+  public String getLabel(int labelId) {
+    return ((String) lookupObject(labelId));
+  }
+
+  private static final long serialVersionUID = 1;
+}
@@ -0,0 +1,92 @@
+package upenn.junto.util;
+
+/**
+ * Primitive storage for the label distributions of a set of vertices,
+ * one row per vertex, with labels addressed by their LabelAlphabet id.
+ * The entries of a row are visited by position: for i in
+ * [0, size(row)), labelAt(row, i) and scoreAt(row, i) give the i-th
+ * stored label and its score. Rows may contain entries with a zero
+ * score; callers should treat those as absent.
+ *
+ * Two layouts are available: DenseLabelStore keeps a flat double[] row
+ * per vertex and suits small label sets, while SlottedLabelStore keeps
+ * parallel int[]/double[] slot arrays per vertex holding only the
+ * labels present, which suits large label sets (particularly when only
+ * the top-K labels are retained). Use Create to pick one.
+ */
+public abstract class LabelStore {
+
+  // label sets up to this size are stored densely by default
+  public static final int MAX_DENSE_LABELS = 64;
+
+  protected final int numRows;
+  protected final int numLabels;
+
+  protected LabelStore(int numRows, int numLabels) {
+    this.numRows = numRows;
+    this.numLabels = numLabels;
+  }
+
+  public int numRows() {
+    return numRows;
+  }
+
+  public int numLabels() {
+    return numLabels;
+  }
+
+  public abstract int size(int row);
+
+  public abstract int labelAt(int row, int i);
+
+  public abstract double scoreAt(int row, int i);
+
+  // score of the label in the row, 0 if not present
+  public abstract double get(int row, int label);
+
+  public abstract void clear(int row);
+
+  // replace the row with the labels present in the accumulator
+  public abstract void set(int row, LabelAccumulator acc);
+
+  // replace the row with the given row of another store
+  public abstract void copyRow(int row, LabelStore src, int srcRow);
+
+  // number of labels with a non-zero score in the row
+  public int count(int row) {
+    int n = 0;
+    int sz = size(row);
+    for (int i = 0; i < sz; ++i) {
+      if (scoreAt(row, i) != 0) { ++n; }
+    }
+    return (n);
+  }
+
+  // load the row into the accumulator, which is cleared first
+  public void load(int row, LabelAccumulator acc) {
+    acc.clear();
+    int sz = size(row);
+    for (int i = 0; i < sz; ++i) {
+      double score = scoreAt(row, i);
+      if (score != 0) {
+        acc.add(labelAt(row, i), score);
+      }
+    }
+  }
+
+  // Create a store suited to the number of labels: dense for small
+  // label sets, slotted otherwise. slotCapacity is the number of labels
+  // a row is expected to hold (e.g. the top-K bound); rows of a slotted
+  // store allocate that many slots at once and grow past it if needed.
+  public static LabelStore Create(int numRows, int numLabels, int slotCapacity) {
+    if (numLabels <= MAX_DENSE_LABELS &&
+        (long) numRows * numLabels <= Integer.MAX_VALUE) {
+      return (new DenseLabelStore(numRows, numLabels));
+    }
+    return (new SlottedLabelStore(numRows, numLabels, slotCapacity));
+  }
+
+  // Create a store with the same layout and dimensions as this one.
+  public abstract LabelStore createEmpty();
+
+}
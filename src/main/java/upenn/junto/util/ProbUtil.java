@@ -51,20 +51,22 @@ public class ProbUtil {
   }
 	
   public static void KeepTopScoringKeys(TObjectDoubleHashMap m, int keepTopK) {
-    ArrayList<ObjectDoublePair> lsps = CollectionUtil.ReverseSortMap(m);
+    int n = m.size();
+    Object[] keys = new Object[n];
+    double[] scores = new double[n];
+    TObjectDoubleIterator mi = m.iterator();
+    for (int i = 0; i < n; ++i) {
+      mi.advance();
+      keys[i] = mi.key();
+      scores[i] = mi.value();
+    }
 
-    // the array is sorted from large to small, so start
-    // from beginning and retain only top scoring k keys.
+    // retain only the top scoring k keys with a positive score
+    int[] selected = new int[Math.min(n, keepTopK)];
+    int totalKept = TopK.Select(scores, null, n, keepTopK, selected);
     m.clear();
-    int totalAdded = 0;
-    int totalSorted = lsps.size();
-    // for (int li = lsps.size() - 1; li >= 0 && totalAdded <= keepTopK; --li) {
-    for (int li = 0; li < totalSorted && totalAdded < keepTopK; ++li) {
-      ++totalAdded;
-
-      if (lsps.get(li).GetScore() > 0) {
-        m.put(lsps.get(li).GetLabel(), lsps.get(li).GetScore());
-      }
+    for (int i = 0; i < totalKept; ++i) {
+      m.put(keys[selected[i]], scores[selected[i]]);
     }
 		
     // size of the new map is upper bounded by the max
@@ -177,4 +179,170 @@ public class ProbUtil {
     return (entropy);
   }
 
+
+  // The methods below provide the operations above over primitive label
+  // storage: a LabelAccumulator for the distribution being computed, and
+  // rows of a LabelStore for the distributions of the vertices.
+
+  // this method returns result += mult * addDist[row]
+  public static void AddScores(LabelAccumulator result, double mult,
+                               LabelStore addDist, int row) {
+    int sz = addDist.size(row);
+    for (int i = 0; i < sz; ++i) {
+      double score = addDist.scoreAt(row, i);
+      if (score != 0) {
+        result.add(addDist.labelAt(row, i), mult * score);
+      }
+    }
+  }
+
+  // this method returns result += mult * addDist
+  public static void AddScores(LabelAccumulator result, double mult,
+                               LabelAccumulator addDist) {
+    int sz = addDist.size();
+    for (int i = 0; i < sz; ++i) {
+      result.add(addDist.labelAt(i), mult * addDist.scoreAt(i));
+    }
+  }
+
+  // this method returns result += mult * {label: 1.0}, e.g. for the dummy label
+  public static void AddScore(LabelAccumulator result, double mult, int label) {
+    result.add(label, mult);
+  }
+
+  public static void DivScores(LabelAccumulator result, double divisor) {
+    assert (divisor > 0);
+
+    int sz = result.size();
+    for (int i = 0; i < sz; ++i) {
+      result.setScoreAt(i, (1.0 * result.scoreAt(i)) / divisor);
+    }
+  }
+
+  public static void KeepTopScoringKeys(LabelAccumulator m, int keepTopK) {
+    m.keepTop(keepTopK);
+
+    // size of the new map is upper bounded by the max
+    // number of entries requested
+    assert (m.size() <= keepTopK);
+  }
+
+  public static void Normalize(LabelAccumulator m) {
+    Normalize(m, Integer.MAX_VALUE);
+  }
+
+  public static void Normalize(LabelAccumulator m, int keepTopK) {
+    // if the number of labels to retain are not the trivial
+    // default value, then keep the top scoring k labels as requested
+    if (keepTopK != Integer.MAX_VALUE) {
+      KeepTopScoringKeys(m, keepTopK);
+    }
+
+    double denom = GetSum(m);
+    if (denom > 0) {
+      int sz = m.size();
+      for (int i = 0; i < sz; ++i) {
+        m.setScoreAt(i, m.scoreAt(i) / denom);
+      }
+    }
+  }
+
+  // normalize a row of a store in place
+  public static void Normalize(LabelStore m, int row, LabelAccumulator scratch) {
+    m.load(row, scratch);
+    Normalize(scratch);
+    m.set(row, scratch);
+  }
+
+  public static double GetSum(LabelAccumulator m) {
+    double sum = 0;
+    int sz = m.size();
+    for (int i = 0; i < sz; ++i) {
+      sum += m.scoreAt(i);
+    }
+    return (sum);
+  }
+
+  public static double GetSum(LabelStore m, int row) {
+    double sum = 0;
+    int sz = m.size(row);
+    for (int i = 0; i < sz; ++i) {
+      sum += m.scoreAt(row, i);
+    }
+    return (sum);
+  }
+
+  // difference between m1[row1] and m2; scratch is used to hold the
+  // difference and is cleared on return.
+  public static double GetDifferenceNorm2Squarred(LabelStore m1, int row1, double m1Mult,
+                                                  LabelAccumulator m2, double m2Mult,
+                                                  LabelAccumulator scratch) {
+    scratch.clear();
+    AddScores(scratch, m1Mult, m1, row1);
+    AddScores(scratch, -1 * m2Mult, m2);
+    return (GetNorm2(scratch));
+  }
+
+  // difference between m1[row1] and m2[row2]; scratch is used to hold the
+  // difference and is cleared on return.
+  public static double GetDifferenceNorm2Squarred(LabelStore m1, int row1, double m1Mult,
+                                                  LabelStore m2, int row2, double m2Mult,
+                                                  LabelAccumulator scratch) {
+    scratch.clear();
+    AddScores(scratch, m1Mult, m1, row1);
+    AddScores(scratch, -1 * m2Mult, m2, row2);
+    return (GetNorm2(scratch));
+  }
+
+  // difference between m1[row1] and mult * {label: 1.0}, e.g. the dummy label
+  public static double GetDifferenceNorm2Squarred(LabelStore m1, int row1, double m1Mult,
+                                                  int label, double labelMult,
+                                                  LabelAccumulator scratch) {
+    scratch.clear();
+    AddScores(scratch, m1Mult, m1, row1);
+    AddScore(scratch, -1 * labelMult, label);
+    return (GetNorm2(scratch));
+  }
+
+  private static double GetNorm2(LabelAccumulator scratch) {
+    double val = 0;
+    int sz = scratch.size();
+    for (int i = 0; i < sz; ++i) {
+      val += scratch.scoreAt(i) * scratch.scoreAt(i);
+    }
+    scratch.clear();
+    return (Math.sqrt(val));
+  }
+
+  // KL (m1[row1] || m2[row2])
+  public static double GetKLDifference(LabelStore m1, int row1,
+                                       LabelStore m2, int row2) {
+    double divergence = 0;
+    int sz = m1.size(row1);
+    for (int i = 0; i < sz; ++i) {
+      double score = m1.scoreAt(row1, i);
+      if (score > 0) {
+        // add a small quantity to the numerator and denominator to avoid
+        // infinite divergence
+        divergence += score
+          * Math.log((score + Constants.GetSmallConstant())
+                     / (m2.get(row2, m1.labelAt(row1, i)) + Constants.GetSmallConstant()));
+      }
+    }
+    return (divergence);
+  }
+
+  // Entropy(m1[row])
+  public static double GetEntropy(LabelStore m1, int row) {
+    double entropy = 0;
+    int sz = m1.size(row);
+    for (int i = 0; i < sz; ++i) {
+      double score = m1.scoreAt(row, i);
+      if (score > 0) {
+        entropy += -1 * score * Math.log(score);
+      }
+    }
+    return (entropy);
+  }
+
 }
@@ -0,0 +1,66 @@
+package upenn.junto.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * An output stream which writes to the log of the run the current
+ * thread works for, or to the console for threads which work for no
+ * run. Installed as System.out and System.err (see Install), it gives
+ * each of several runs executing at the same time a log of its own,
+ * where swapping System.out for every run only works for one run at a
+ * time. A thread is bound to a log with bind, and the threads it starts
+ * while bound, e.g. the workers of a VertexParallelizer, inherit that
+ * log.
+ */
+public class RunLogStream extends OutputStream {
+
+  private final OutputStream console;
+  private final InheritableThreadLocal<OutputStream> log =
+    new InheritableThreadLocal<OutputStream>();
+
+  public RunLogStream(OutputStream console) {
+    this.console = console;
+  }
+
+  // Make this the standard output and error stream, both writing to the
+  // console, or the log of the run, of the thread printing. Loggers
+  // writing to the console must be created afterwards, so that they
+  // pick the new System.out up.
+  public static RunLogStream Install() {
+    RunLogStream out = new RunLogStream(System.out);
+    PrintStream ps = new PrintStream(out, true);
+    System.setOut(ps);
+    System.setErr(ps);
+    return (out);
+  }
+
+  // send what the current thread writes to runLog, or back to the
+  // console if runLog is null
+  public void bind(OutputStream runLog) {
+    if (runLog == null) {
+      log.remove();
+    } else {
+      log.set(runLog);
+    }
+  }
+
+  private OutputStream target() {
+    OutputStream out = log.get();
+    return (out != null ? out : console);
+  }
+
+  public void write(int b) throws IOException {
+    target().write(b);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    target().write(b, off, len);
+  }
+
+  public void flush() throws IOException {
+    target().flush();
+  }
+
+}
@@ -0,0 +1,381 @@
+package upenn.junto.util;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Performance figures of a label propagation run, per iteration and per
+ * phase of an iteration (COMPUTE the new scores, APPLY them, EVALUATE
+ * the result).
+ *
+ * Each phase records its wall time, the heap in use at its end and the
+ * bytes allocated during it (by all live threads, where the JVM can
+ * tell; -1 otherwise). Each iteration also records the edges processed,
+ * and their rate over the compute phase, the vertices computed and
+ * updated, the label delta (the squared L2 change of the scores per
+ * vertex) and a histogram of the number of labels per vertex, in
+ * buckets 0, 1, 2-3, 4-7, ... (see Bucket); an algorithm which does not
+ * track the last two passes NaN and null instead. Nothing here forces a
+ * garbage collection.
+ *
+ * With a reportFile, the figures of all the iterations so far are
+ * written to it after every iteration, in JSON if its name ends in
+ * .json and in CSV otherwise. With jmx, the run is registered as an
+ * MBean (upenn.junto:type=RunMetrics,algorithm=...,run=...) showing the
+ * figures of the last iteration, until close.
+ */
+public class RunMetrics implements RunMetricsMBean {
+
+  public static final String COMPUTE = "compute";
+  public static final String APPLY = "apply";
+  public static final String EVALUATE = "evaluate";
+
+  public static final int NUM_BUCKETS = 32;
+
+  private static final AtomicInteger runCount = new AtomicInteger();
+
+  private static class Phase {
+    String name;
+    long nanos;
+    long heapUsed;
+    long allocated;
+  }
+
+  private static class Iteration {
+    int iter;
+    long nanos;
+    long computeNanos = -1;
+    long heapUsed;
+    long allocated;
+    long edges;
+    long verticesComputed;
+    long verticesUpdated;
+    double labelDelta;
+    long[] histogram;
+    List<Phase> phases = new ArrayList<Phase>();
+  }
+
+  private final String algorithm;
+  private final String reportFile;
+  private final ObjectName objectName;
+
+  private final List<Iteration> iterations = new ArrayList<Iteration>();
+  private volatile Iteration last = null;
+
+  // the iteration and phase in progress
+  private Iteration current = null;
+  private Phase phase = null;
+  private long iterStart;
+  private long iterAllocated;
+  private long phaseStart;
+  private long phaseAllocated;
+
+  public RunMetrics(String algorithm, String reportFile, boolean jmx) {
+    this.algorithm = algorithm;
+    this.reportFile = reportFile;
+    if (jmx) {
+      try {
+        objectName = new ObjectName("upenn.junto:type=RunMetrics,algorithm=" + algorithm +
+                                    ",run=" + runCount.incrementAndGet());
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+      } catch (JMException e) {
+        throw new RuntimeException("Unable to register the run metrics MBean", e);
+      }
+    } else {
+      objectName = null;
+    }
+  }
+
+  // whether the figures are published at all, through a report file or
+  // JMX; figures which are costly to gather may be skipped otherwise
+  public boolean isEnabled() {
+    return (reportFile != null || objectName != null);
+  }
+
+  public void startIteration(int iter) {
+    current = new Iteration();
+    current.iter = iter;
+    iterStart = System.nanoTime();
+    iterAllocated = AllocatedBytes();
+  }
+
+  // start the given phase, ending the one in progress, if any
+  public void startPhase(String name) {
+    endPhase();
+    phase = new Phase();
+    phase.name = name;
+    phaseStart = System.nanoTime();
+    phaseAllocated = AllocatedBytes();
+  }
+
+  private void endPhase() {
+    if (phase == null) {
+      return;
+    }
+    phase.nanos = System.nanoTime() - phaseStart;
+    phase.heapUsed = HeapUsed();
+    phase.allocated = AllocatedDelta(phaseAllocated);
+    if (phase.name.equals(COMPUTE)) {
+      current.computeNanos = phase.nanos;
+    }
+    current.phases.add(phase);
+    phase = null;
+  }
+
+  // end the iteration in progress, and publish it
+  public void endIteration(long edgesProcessed, long verticesComputed, long verticesUpdated,
+                           double labelDelta, long[] histogram) {
+    endPhase();
+    current.nanos = System.nanoTime() - iterStart;
+    current.heapUsed = HeapUsed();
+    current.allocated = AllocatedDelta(iterAllocated);
+    current.edges = edgesProcessed;
+    current.verticesComputed = verticesComputed;
+    current.verticesUpdated = verticesUpdated;
+    current.labelDelta = labelDelta;
+    current.histogram = histogram == null ? null : histogram.clone();
+    iterations.add(current);
+    last = current;
+    current = null;
+
+    if (reportFile != null) {
+      writeReport();
+    }
+  }
+
+  // unregister the MBean; the report is already up to date
+  public void close() {
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        throw new RuntimeException("Unable to unregister the run metrics MBean", e);
+      }
+    }
+  }
+
+  public static long[] NewHistogram() {
+    return (new long[NUM_BUCKETS]);
+  }
+
+  // bucket 0 holds vertices without labels, and bucket b > 0 those with
+  // 2^(b-1) to 2^b - 1 labels
+  public static int Bucket(int labelCount) {
+    return (32 - Integer.numberOfLeadingZeros(labelCount));
+  }
+
+  public static String BucketName(int b) {
+    if (b <= 1) {
+      return (Integer.toString(b));
+    }
+    return ((1 << (b - 1)) + "-" + ((1 << b) - 1));
+  }
+
+  private static long HeapUsed() {
+    return (ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+  }
+
+  // bytes allocated so far by the live threads, or -1 if unknown
+  private static long AllocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+      return (-1);
+    }
+    com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) threads;
+    if (!hotspot.isThreadAllocatedMemorySupported() ||
+        !hotspot.isThreadAllocatedMemoryEnabled()) {
+      return (-1);
+    }
+    long total = 0;
+    for (long bytes : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+      if (bytes > 0) {
+        total += bytes;
+      }
+    }
+    return (total);
+  }
+
+  // threads which ended in between take their allocations with them
+  private static long AllocatedDelta(long since) {
+    if (since < 0) {
+      return (-1);
+    }
+    return (Math.max(0, AllocatedBytes() - since));
+  }
+
+  private static double PerSecond(long count, long nanos) {
+    return (nanos > 0 ? count * 1e9 / nanos : 0.0);
+  }
+
+  private static double Millis(long nanos) {
+    return (nanos / 1e6);
+  }
+
+  private static double EdgesPerSecond(Iteration it) {
+    return (PerSecond(it.edges, it.computeNanos >= 0 ? it.computeNanos : it.nanos));
+  }
+
+  private static double AllocationRate(long allocated, long nanos) {
+    return (allocated < 0 ? -1.0 : PerSecond(allocated, nanos));
+  }
+
+  private void writeReport() {
+    final String report = reportFile.endsWith(".json") ? jsonReport() : csvReport();
+    try {
+      AsyncFileWriter.Write(new File(reportFile), new AsyncFileWriter.Payload() {
+        public void writeTo(DataOutputStream out) throws IOException {
+          out.write(report.getBytes("UTF-8"));
+        }
+      });
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write the run metrics to " + reportFile, e);
+    }
+  }
+
+  private String jsonReport() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("{\n  \"algorithm\": \"").append(algorithm).append("\",\n");
+    sb.append("  \"iterations\": [");
+    for (int i = 0; i < iterations.size(); ++i) {
+      Iteration it = iterations.get(i);
+      sb.append(i > 0 ? ",\n" : "\n");
+      sb.append("    {\"iteration\": ").append(it.iter);
+      sb.append(", \"wall_ms\": ").append(Millis(it.nanos));
+      sb.append(", \"edges_processed\": ").append(it.edges);
+      sb.append(", \"edges_per_second\": ").append(EdgesPerSecond(it));
+      sb.append(", \"vertices_computed\": ").append(it.verticesComputed);
+      sb.append(", \"vertices_updated\": ").append(it.verticesUpdated);
+      sb.append(", \"label_delta\": ").append(JsonNumber(it.labelDelta));
+      sb.append(", \"heap_used_bytes\": ").append(it.heapUsed);
+      sb.append(", \"allocated_bytes\": ").append(it.allocated);
+      sb.append(", \"allocation_rate\": ").append(AllocationRate(it.allocated, it.nanos));
+      if (it.histogram != null) {
+        sb.append(", \"label_count_histogram\": {");
+        for (int b = 0; b < NumBuckets(it.histogram); ++b) {
+          sb.append(b > 0 ? ", " : "");
+          sb.append('"').append(BucketName(b)).append("\": ").append(it.histogram[b]);
+        }
+        sb.append('}');
+      }
+      sb.append(",\n     \"phases\": [");
+      for (int p = 0; p < it.phases.size(); ++p) {
+        Phase ph = it.phases.get(p);
+        sb.append(p > 0 ? ", " : "");
+        sb.append("{\"phase\": \"").append(ph.name).append('"');
+        sb.append(", \"wall_ms\": ").append(Millis(ph.nanos));
+        sb.append(", \"heap_used_bytes\": ").append(ph.heapUsed);
+        sb.append(", \"allocated_bytes\": ").append(ph.allocated);
+        sb.append(", \"allocation_rate\": ").append(AllocationRate(ph.allocated, ph.nanos));
+        sb.append('}');
+      }
+      sb.append("]}");
+    }
+    sb.append("\n  ]\n}\n");
+    return (sb.toString());
+  }
+
+  // one row per phase, followed by a "total" row for the iteration,
+  // which alone has the per-iteration columns filled in
+  private String csvReport() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("iteration,phase,wall_ms,heap_used_bytes,allocated_bytes,allocation_rate,")
+      .append("edges_processed,edges_per_second,vertices_computed,vertices_updated,")
+      .append("label_delta,label_count_histogram\n");
+    for (Iteration it : iterations) {
+      for (Phase ph : it.phases) {
+        sb.append(it.iter).append(',').append(ph.name).append(',')
+          .append(Millis(ph.nanos)).append(',').append(ph.heapUsed).append(',')
+          .append(ph.allocated).append(',').append(AllocationRate(ph.allocated, ph.nanos))
+          .append(",,,,,,\n");
+      }
+      sb.append(it.iter).append(",total,")
+        .append(Millis(it.nanos)).append(',').append(it.heapUsed).append(',')
+        .append(it.allocated).append(',').append(AllocationRate(it.allocated, it.nanos))
+        .append(',').append(it.edges).append(',').append(EdgesPerSecond(it))
+        .append(',').append(it.verticesComputed).append(',').append(it.verticesUpdated)
+        .append(',').append(Double.isNaN(it.labelDelta) ? "" : Double.toString(it.labelDelta))
+        .append(',');
+      if (it.histogram != null) {
+        for (int b = 0; b < NumBuckets(it.histogram); ++b) {
+          sb.append(b > 0 ? " " : "").append(BucketName(b)).append(':').append(it.histogram[b]);
+        }
+      }
+      sb.append('\n');
+    }
+    return (sb.toString());
+  }
+
+  private static String JsonNumber(double value) {
+    return (Double.isNaN(value) || Double.isInfinite(value) ? "null" : Double.toString(value));
+  }
+
+  // buckets up to the last non-empty one
+  private static int NumBuckets(long[] histogram) {
+    int n = histogram.length;
+    while (n > 1 && histogram[n - 1] == 0) {
+      --n;
+    }
+    return (n);
+  }
+
+  // RunMetricsMBean: the last completed iteration
+
+  public String getAlgorithm() {
+    return (algorithm);
+  }
+
+  public int getIteration() {
+    Iteration it = last;
+    return (it == null ? 0 : it.iter);
+  }
+
+  public long getIterationMillis() {
+    Iteration it = last;
+    return (it == null ? 0 : it.nanos / 1000000);
+  }
+
+  public long getEdgesProcessed() {
+    Iteration it = last;
+    return (it == null ? 0 : it.edges);
+  }
+
+  public double getEdgesPerSecond() {
+    Iteration it = last;
+    return (it == null ? 0.0 : EdgesPerSecond(it));
+  }
+
+  public long getVerticesUpdated() {
+    Iteration it = last;
+    return (it == null ? 0 : it.verticesUpdated);
+  }
+
+  public double getLabelDelta() {
+    Iteration it = last;
+    return (it == null ? 0.0 : it.labelDelta);
+  }
+
+  public long getHeapUsedBytes() {
+    Iteration it = last;
+    return (it == null ? HeapUsed() : it.heapUsed);
+  }
+
+  public double getAllocationRate() {
+    Iteration it = last;
+    return (it == null ? 0.0 : AllocationRate(it.allocated, it.nanos));
+  }
+
+  public long[] getLabelCountHistogram() {
+    Iteration it = last;
+    return (it == null || it.histogram == null ? new long[0] : it.histogram.clone());
+  }
+
+}
@@ -0,0 +1,30 @@
+package upenn.junto.util;
+
+/**
+ * JMX view of a running label propagation (see RunMetrics): the figures
+ * of the last completed iteration.
+ */
+public interface RunMetricsMBean {
+
+  String getAlgorithm();
+
+  int getIteration();
+
+  long getIterationMillis();
+
+  long getEdgesProcessed();
+
+  double getEdgesPerSecond();
+
+  long getVerticesUpdated();
+
+  double getLabelDelta();
+
+  long getHeapUsedBytes();
+
+  double getAllocationRate();
+
+  // number of vertices by bucket of label count (see RunMetrics.Bucket)
+  long[] getLabelCountHistogram();
+
+}
@@ -0,0 +1,109 @@
+package upenn.junto.util;
+
+/**
+ * LabelStore keeping, for each vertex, parallel arrays of label ids and
+ * scores holding only the labels present in its distribution. A row's
+ * slot arrays are allocated lazily and only reallocated when the row
+ * needs more slots than it ever had, so once the distributions have
+ * reached their working size (e.g. the top-K labels) no further
+ * allocation takes place.
+ */
+public class SlottedLabelStore extends LabelStore {
+  private static final int[] NO_LABELS = new int[0];
+  private static final double[] NO_SCORES = new double[0];
+
+  private final int[][] labels;
+  private final double[][] scores;
+  private final int[] sizes;
+  private final int slotCapacity;
+
+  public SlottedLabelStore(int numRows, int numLabels, int slotCapacity) {
+    super(numRows, numLabels);
+    this.labels = new int[numRows][];
+    this.scores = new double[numRows][];
+    this.sizes = new int[numRows];
+    this.slotCapacity = Math.min(slotCapacity, numLabels);
+    for (int r = 0; r < numRows; ++r) {
+      labels[r] = NO_LABELS;
+      scores[r] = NO_SCORES;
+    }
+  }
+
+  public int size(int row) {
+    return sizes[row];
+  }
+
+  public int labelAt(int row, int i) {
+    return labels[row][i];
+  }
+
+  public double scoreAt(int row, int i) {
+    return scores[row][i];
+  }
+
+  public double get(int row, int label) {
+    int[] rowLabels = labels[row];
+    int sz = sizes[row];
+    for (int i = 0; i < sz; ++i) {
+      if (rowLabels[i] == label) {
+        return scores[row][i];
+      }
+    }
+    return (0);
+  }
+
+  public void clear(int row) {
+    sizes[row] = 0;
+  }
+
+  private void ensureCapacity(int row, int capacity) {
+    if (labels[row].length < capacity) {
+      // with a bounded number of labels per row (e.g. top-K) allocate all
+      // the slots at once, otherwise grow geometrically.
+      int newCapacity = (slotCapacity < numLabels) ?
+        Math.max(capacity, slotCapacity) :
+        Math.min(numLabels, Math.max(capacity, 2 * labels[row].length));
+      labels[row] = new int[newCapacity];
+      scores[row] = new double[newCapacity];
+    }
+  }
+
+  public void set(int row, LabelAccumulator acc) {
+    int sz = acc.size();
+    ensureCapacity(row, sz);
+    int[] rowLabels = labels[row];
+    double[] rowScores = scores[row];
+    for (int i = 0; i < sz; ++i) {
+      rowLabels[i] = acc.labelAt(i);
+      rowScores[i] = acc.scoreAt(i);
+    }
+    sizes[row] = sz;
+  }
+
+  public void copyRow(int row, LabelStore src, int srcRow) {
+    int sz = src.size(srcRow);
+    ensureCapacity(row, sz);
+    if (src instanceof SlottedLabelStore) {
+      SlottedLabelStore s = (SlottedLabelStore) src;
+      System.arraycopy(s.labels[srcRow], 0, labels[row], 0, sz);
+      System.arraycopy(s.scores[srcRow], 0, scores[row], 0, sz);
+      sizes[row] = sz;
+    } else {
+      int n = 0;
+      for (int i = 0; i < sz; ++i) {
+        double score = src.scoreAt(srcRow, i);
+        if (score != 0) {
+          labels[row][n] = src.labelAt(srcRow, i);
+          scores[row][n] = score;
+          ++n;
+        }
+      }
+      sizes[row] = n;
+    }
+  }
+
+  public LabelStore createEmpty() {
+    return (new SlottedLabelStore(numRows, numLabels, slotCapacity));
+  }
+
+}
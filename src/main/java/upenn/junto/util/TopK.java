@@ -0,0 +1,102 @@
+package upenn.junto.util;
+
+/**
+ * Top-K selection over primitive score arrays, without boxing and
+ * without sorting all the entries.
+ *
+ * Entries are addressed by position i in [0, n). The score of entry i
+ * is scores[ids[i]], or scores[i] if ids is null. Entries are ranked by
+ * decreasing score, and entries with equal scores by increasing
+ * position, i.e. the order a stable sort from large to small gives.
+ */
+public class TopK {
+
+  // Select the (at most) k highest ranked entries with a positive score,
+  // using a bounded heap of size k: O(n log k). Their positions are
+  // written to result[0, count) from highest to lowest rank, and count
+  // is returned. result must hold at least min(n, k) ints.
+  public static int Select(double[] scores, int[] ids, int n, int k, int[] result) {
+    return (Select(scores, ids, n, k, true, result));
+  }
+
+  // Rank all the n entries, whatever their score, i.e. a stable sort by
+  // decreasing score: result[0, n) receives their positions.
+  public static void Rank(double[] scores, int[] ids, int n, int[] result) {
+    Select(scores, ids, n, n, false, result);
+  }
+
+  private static int Select(double[] scores, int[] ids, int n, int k,
+                            boolean positiveOnly, int[] result) {
+    int size = 0;
+    for (int i = 0; i < n && k > 0; ++i) {
+      double score = Score(scores, ids, i);
+      if (positiveOnly && score <= 0) {
+        continue;
+      }
+      if (size < k) {
+        result[size] = i;
+        SiftUp(scores, ids, result, size);
+        ++size;
+      } else if (Outranks(scores, ids, i, result[0])) {
+        // replace the lowest ranked entry kept so far
+        result[0] = i;
+        SiftDown(scores, ids, result, 0, size);
+      }
+    }
+
+    // heap sort: move the lowest ranked entry to the end, repeatedly
+    for (int last = size - 1; last > 0; --last) {
+      int tmp = result[0];
+      result[0] = result[last];
+      result[last] = tmp;
+      SiftDown(scores, ids, result, 0, last);
+    }
+    return (size);
+  }
+
+  // true if entry i is ranked higher than entry j
+  private static boolean Outranks(double[] scores, int[] ids, int i, int j) {
+    double si = Score(scores, ids, i);
+    double sj = Score(scores, ids, j);
+    return (si > sj || (si == sj && i < j));
+  }
+
+  private static double Score(double[] scores, int[] ids, int i) {
+    return (ids == null ? scores[i] : scores[ids[i]]);
+  }
+
+  // the heap keeps its lowest ranked entry at the root
+
+  private static void SiftUp(double[] scores, int[] ids, int[] heap, int pos) {
+    int entry = heap[pos];
+    while (pos > 0) {
+      int parent = (pos - 1) >>> 1;
+      if (!Outranks(scores, ids, heap[parent], entry)) {
+        break;
+      }
+      heap[pos] = heap[parent];
+      pos = parent;
+    }
+    heap[pos] = entry;
+  }
+
+  private static void SiftDown(double[] scores, int[] ids, int[] heap, int pos, int size) {
+    int entry = heap[pos];
+    while (true) {
+      int child = 2 * pos + 1;
+      if (child >= size) {
+        break;
+      }
+      if (child + 1 < size && Outranks(scores, ids, heap[child], heap[child + 1])) {
+        ++child;
+      }
+      if (!Outranks(scores, ids, entry, heap[child])) {
+        break;
+      }
+      heap[pos] = heap[child];
+      pos = child;
+    }
+    heap[pos] = entry;
+  }
+
+}
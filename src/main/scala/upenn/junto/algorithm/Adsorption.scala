@@ -1,11 +1,14 @@
 package upenn.junto.algorithm
 
 import upenn.junto.config.Flags
-import upenn.junto.eval.GraphEval
+import upenn.junto.eval.LabelStateEvaluator
 import upenn.junto.graph._
 import upenn.junto.util.CollectionUtil
 import upenn.junto.util.Constants
+import upenn.junto.util.LabelAccumulator
+import upenn.junto.util.LabelAlphabet
 import upenn.junto.util.ProbUtil
+import upenn.junto.util.RunMetrics
 import java.util.ArrayList
 import java.util.HashMap
 import java.util.Iterator
@@ -18,48 +21,50 @@ import com.typesafe.scalalogging.log4j.Logging
  * Class for MAD algorithm, providing MAD specific implementation details
  * as extension of Adsorption.
  */
-class ModifiedAdsorption (g: Graph, keepTopKLabels: Int, mu1: Double, mu2: Double, mu3: Double)
-extends Adsorption (g, keepTopKLabels, mu1, mu2, mu3) {
+class ModifiedAdsorption (g: Graph, keepTopKLabels: Int, mu1: Double, mu2: Double, mu3: Double,
+                          options: PropagationOptions = PropagationOptions())
+extends Adsorption (g, keepTopKLabels, mu1, mu2, mu3, options) {
 
-  val normalizationConstants = MadHelper.computeNormalizationConstants(g, mu1, mu2, mu3)
+  val normalizationConstants = MadHelper.computeNormalizationConstants(g.csr, mu1, mu2, mu3, options.numThreads)
 
-  def normalizeScores (vertex: Vertex, scores: TObjectDoubleHashMap[String]) {
-    ProbUtil.DivScores(scores, normalizationConstants.get(vertex.name))
+  def normalizeScores (vi: Int, vertex: Vertex, scores: LabelAccumulator) {
+    ProbUtil.DivScores(scores, normalizationConstants(vi))
   }
 
   // multiplier for MAD update: (p_v_cont * w_vu + p_u_cont * w_uv) where u is neighbor
-  def getMultiplier (vName: String, vertex: Vertex, neighName: String, neighbor: Vertex) =
-    (vertex.pcontinue * vertex.GetNeighborWeight(neighName) +
-     neighbor.pcontinue * neighbor.GetNeighborWeight(vName))
+  def getMultiplier (vertex: Vertex, neighbor: Vertex, vuWeight: Double, uvWeight: Double) =
+    vertex.pcontinue * vuWeight + neighbor.pcontinue * uvWeight
 
 }
 
 // Helper methods for the MAD algorithm
 object MadHelper {
 
-  // Precomputes M_ii normalization (see algorithm in Talukdar and Crammer 2009)
+  // Precomputes M_ii normalization (see algorithm in Talukdar and Crammer 2009),
+  // indexed by the CSR vertex id, with numThreads workers.
   def computeNormalizationConstants (
-    g: Graph, mu1: Double, mu2: Double, mu3: Double
-  ): TObjectDoubleHashMap[String] = {
-
-    val norms = new TObjectDoubleHashMap[String]
-    g.vertices.keySet.foreach { 
-      vName => {
-        val vertex = g.vertices.get(vName)
-        
+    csr: CsrGraph, mu1: Double, mu2: Double, mu3: Double, numThreads: Int = 1
+  ): Array[Double] = {
+
+    val norms = new Array[Double](csr.numVertices)
+    val par = new VertexParallelizer(numThreads)
+    try {
+      par.foreach(csr.numVertices) { vi =>
+        val vertex = csr.vertices(vi)
+
         var totalNeighWeight = 0.0
-        val nIter = vertex.neighbors.iterator
-        while (nIter.hasNext) {
-          nIter.advance
-          totalNeighWeight += vertex.pcontinue * nIter.value
-          val neigh = g.vertices.get(nIter.key)
-          totalNeighWeight += neigh.pcontinue * neigh.GetNeighborWeight(vertex.name)
+        var ei = csr.offsets(vi)
+        while (ei < csr.offsets(vi + 1)) {
+          totalNeighWeight += vertex.pcontinue * csr.weights(ei)
+          totalNeighWeight += csr.vertices(csr.targets(ei)).pcontinue * csr.reverseWeights(ei)
+          ei += 1
         }
 		
         //mii = mu1 x p^{inj} + 0.5 * mu2 x \sum_j (p_{i}^{cont} W_{ij} + p_{j}^{cont} W_{ji}) + mu3
-        val mii = mu1 * vertex.pinject + mu2 * totalNeighWeight + mu3
-        norms.put(vName, mii)
+        norms(vi) = mu1 * vertex.pinject + mu2 * totalNeighWeight + mu3
       }
+    } finally {
+      par.shutdown
     }
     norms
   }
@@ -72,247 +77,413 @@ object MadHelper {
  * Class for the original Baluja et al algorithm, providing specific implementation
  * details as extension of Adsorption.
  */
-class OriginalAdsorption (g: Graph, keepTopKLabels: Int, mu1: Double, mu2: Double, mu3: Double)
-extends Adsorption (g, keepTopKLabels, mu1, mu2, mu3) {
+class OriginalAdsorption (g: Graph, keepTopKLabels: Int, mu1: Double, mu2: Double, mu3: Double,
+                          options: PropagationOptions = PropagationOptions())
+extends Adsorption (g, keepTopKLabels, mu1, mu2, mu3, options) {
 
-  def normalizeScores (vertex: Vertex, scores: TObjectDoubleHashMap[String]) {
+  def normalizeScores (vi: Int, vertex: Vertex, scores: LabelAccumulator) {
     ProbUtil.Normalize(scores, keepTopKLabels)
   }
 
   // multiplier for Adsorption update: p_v_cont * w_uv (where u is neighbor)
-  def getMultiplier (vName: String, vertex: Vertex, neighName: String, neighbor: Vertex) =
-      vertex.pcontinue * neighbor.GetNeighborWeight(vName)
+  def getMultiplier (vertex: Vertex, neighbor: Vertex, vuWeight: Double, uvWeight: Double) =
+      vertex.pcontinue * uvWeight
 
-  override def normalizeIfNecessary (scores: TObjectDoubleHashMap[String]) { 
+  override def normalizeIfNecessary (scores: LabelAccumulator) { 
     ProbUtil.Normalize(scores) 
   }
 
 }
 
-object AdsorptionHelper {
-
-  // -- normalize edge weights
-  // -- remove dummy label from injected or estimate labels.
-  // -- if seed node, then initialize estimated labels with injected
-  def prepareGraph (graph: Graph) {
-    for (vName <- graph.vertices.keySet) {
-      val v: Vertex = graph.vertices.get(vName)
-      
-      // remove dummy label: after normalization, some of the distributions
-      // may not be valid probability distributions, but that is fine as the
-      // algorithm doesn't require the scores to be normalized (to start with)
-      v.SetInjectedLabelScore(Constants.GetDummyLabel, 0.0)
-      
-      if (v.isSeedNode) {
-        val injLabIter = v.injectedLabels.iterator
-        while (injLabIter.hasNext) {
-          injLabIter.advance
-          v.SetInjectedLabelScore(injLabIter.key, injLabIter.value)
-        }
-        v.SetEstimatedLabelScores(new TObjectDoubleHashMap[String](v.injectedLabels))
-      } else {
-        // remove dummy label
-        v.SetEstimatedLabelScore(Constants.GetDummyLabel, 0.0);				
-      }
-    }
-    
-  }
-
-}
-
-
 /**
  * Parent class for Adsorption algorithms.
  */
-abstract class Adsorption (g: Graph, keepTopKLabels: Int, mu1: Double, mu2: Double, mu3: Double)
+abstract class Adsorption (g: Graph, keepTopKLabels: Int, mu1: Double, mu2: Double, mu3: Double,
+                           options: PropagationOptions = PropagationOptions())
 extends LabelPropagationAlgorithm(g) 
 with Logging {
 
   // Normalization is needed only for the original Adsorption
   // algorithm.  After normalization, we have the weighted
   // neighborhood label distribution for the current node.
-  def normalizeIfNecessary (scores: TObjectDoubleHashMap[String]) { }
+  def normalizeIfNecessary (scores: LabelAccumulator) { }
 
-  def normalizeScores (vertex: Vertex, scores: TObjectDoubleHashMap[String]): Unit
+  def normalizeScores (vi: Int, vertex: Vertex, scores: LabelAccumulator): Unit
 
-  def getMultiplier (vName: String, vertex: Vertex, neighName: String, neighbor: Vertex): Double
+  // vuWeight is the weight of the edge from vertex to neighbor, and
+  // uvWeight that of the edge from neighbor back to vertex.
+  def getMultiplier (vertex: Vertex, neighbor: Vertex, vuWeight: Double, uvWeight: Double): Double
+
+  // label distributions of the current run, by CSR vertex id
+  var labels: LabelState = null
+
+  // mu2 * getMultiplier of every CSR edge, for the current run
+  var edgeCoefficients: Array[Double] = null
 
   def run (maxIter: Int, useBipartiteOptimization: Boolean,
            verbose: Boolean, resultList: ArrayList[Map[String,Double]]) {
 		
-    AdsorptionHelper.prepareGraph(g)
+    val csr = g.csr
+    labels = LabelState.initial(g, keepTopKLabels, false)
+    edgeCoefficients = computeEdgeCoefficients(csr)
+
+    // pick up the scores of an interrupted run, if resuming
+    val checkpoint = new LabelCheckpoint(options, getClass.getSimpleName, Array(mu1, mu2, mu3))
+    val resumedIter = checkpoint.resume(labels)
+
+    // scratch distributions, one per worker
+    val scratch = new ThreadLocal[LabelAccumulator] {
+      override def initialValue = labels.newAccumulator
+    }
+
+    // performance figures of every iteration
+    val metrics = options.newMetrics(getClass.getSimpleName)
+    val par = new VertexParallelizer(options.numThreads)
+    try {
+      val deltas = new Array[Double](csr.numVertices)
+
+      // Active set bookkeeping: computed(vi) tells whether vi was
+      // recomputed in the current iteration, changed(vi) whether its
+      // scores moved by more than the tolerance when it was last updated,
+      // and pending(vi) whether a neighbor changed since vi was last
+      // recomputed. Without the active set every vertex is computed.
+      val gaussSeidel = options.updateMode match {
+        case "jacobi" => false
+        case "gauss_seidel" => true
+        case mode => throw new RuntimeException("Unknown update mode: " + mode)
+      }
+      if (gaussSeidel && options.useActiveSet)
+        logger.warn("The active set is not used with gauss_seidel updates")
+      if (gaussSeidel && options.numThreads > 1)
+        logger.warn("gauss_seidel updates are sequential, ignoring num_threads")
+      val order = if (gaussSeidel) VertexOrder(csr, options.vertexOrder) else null
+      val sweepScratch = labels.newAccumulator
+
+      val useActiveSet = options.useActiveSet && !gaussSeidel
+      val computed = Array.fill(csr.numVertices)(true)
+      val changed = new Array[Boolean](csr.numVertices)
+      val pending = Array.fill(csr.numVertices)(true)
 		
-    if (verbose)
-      logger.info(
-              "after_iteration " + 0 + 
-              " objective: " + getGraphObjective +
-              " precision: " + GraphEval.GetAccuracy(g) +
-              " rmse: " + GraphEval.GetRMSE(g) +
-              " mrr_train: " + GraphEval.GetAverageTrainMRR(g) +
-              " mrr_test: " + GraphEval.GetAverageTestMRR(g))
-
-    logger.info("Iteration:")
-    for (iter <- 1 to maxIter) {
-      logger.info(" " + iter)
-			
-      val startTime = System.currentTimeMillis
+      val evaluator = new LabelStateEvaluator(labels)
 
-      val newDist =  new HashMap[String, TObjectDoubleHashMap[String]]
+      // counting the labels of every vertex takes a pass over all the
+      // scores, so only done when the metrics are published
+      val histogram = if (metrics.isEnabled) RunMetrics.NewHistogram else null
+		
+      if (verbose) {
+        val eval = evaluator.Evaluate
+        logger.info(
+                "after_iteration " + resumedIter + 
+                " objective: " + getGraphObjective(par, scratch) +
+                " precision: " + eval.accuracy +
+                " rmse: " + eval.rmse +
+                " mrr_train: " + eval.trainMRR +
+                " mrr_test: " + eval.testMRR)
+      }
 
-      for (vName <- g.vertices.keySet) {
+      logger.info("Iteration:")
+      var iter = resumedIter + 1
+      var converged = false
+      while (iter <= maxIter && !converged) {
+        logger.info(" " + iter)
 			
-        val v: Vertex = g.vertices.get(vName)
+        val startTime = System.currentTimeMillis
+        metrics.startIteration(iter)
+        metrics.startPhase(RunMetrics.COMPUTE)
+
+        if (gaussSeidel) {
+          // update in place, in the given vertex order: each vertex reads
+          // the freshest scores of its neighbors
+          val vertexNewDist = scratch.get
+          for (vi <- order) {
+            if (isUpdated(vi, iter, useBipartiteOptimization)) {
+              computeNewDist(vi, iter, verbose, vertexNewDist)
+              deltas(vi) =
+                ProbUtil.GetDifferenceNorm2Squarred(labels.estimated, vi, 1.0,
+                                                    vertexNewDist, 1.0, sweepScratch)
+              labels.estimated.set(vi, vertexNewDist)
+            } else {
+              deltas(vi) = 0.0
+            }
+          }
+        } else {
+          val newDist = labels.nextEstimated
 
-        val vertexNewDist = new TObjectDoubleHashMap[String]
-							
-        // compute weighted neighborhood label distribution
-        for (neighName <- v.GetNeighborNames) {
-          val neigh: Vertex = g.vertices.get(neighName)
-          val mult = getMultiplier(vName, v, neighName, neigh)
+          par.foreach(csr.numVertices) { vi =>
+            if (useActiveSet)
+              computed(vi) = isActive(vi, iter, useBipartiteOptimization, changed, pending)
 
-          if (verbose)
-            logger.info(v.name + " " + v.pcontinue + " " +
-                    v.GetNeighborWeight(neighName) + " " +
-                    neigh.pcontinue + " " + neigh.GetNeighborWeight(vName))
+            if (computed(vi)) {
+              val vertexNewDist = scratch.get
+              computeNewDist(vi, iter, verbose, vertexNewDist)
 
-          if (mult <= 0) 
-            throw new RuntimeException("Non-positive weighted edge:>>" +
-                                       neigh.name + "-->" + v.name + "<<" + " " + mult)
-
-          ProbUtil.AddScores(vertexNewDist, mult * mu2, neigh.estimatedLabels)
-        }
-				
-        if (verbose)
-          logger.info("Before norm: " + v.name + " " + ProbUtil.GetSum(vertexNewDist))
+              // Store the new distribution for later update
+              newDist.set(vi, vertexNewDist)
+            }
+          }
 
-        normalizeIfNecessary(vertexNewDist)
-								
-        if (verbose) 
-          logger.info("After norm: " + v.name + " " + ProbUtil.GetSum(vertexNewDist))
-				
-        // add injection probability
-        ProbUtil.AddScores(vertexNewDist, v.pinject * mu1, v.injectedLabels)
-	
-        if (verbose)
-          logger.info(iter + " after_inj " + v.name + " " +
-                  ProbUtil.GetSum(vertexNewDist) + 
-                  " " + CollectionUtil.Map2String(vertexNewDist) +
-                  " mu1: " + mu1)
-
-        // add dummy label distribution
-        ProbUtil.AddScores(vertexNewDist,
-                           v.pabandon * mu3,
-                           Constants.GetDummyLabelDist)
-				
-        if (verbose)
-          logger.info(
-                  iter + " after_dummy " + v.name + " " +
-                  ProbUtil.GetSum(vertexNewDist) + " " +
-                  CollectionUtil.Map2String(vertexNewDist) +
-                  " injected: " + CollectionUtil.Map2String(v.injectedLabels))
-				
-        // keep only the top scoring k labels, this is particularly useful
-        // when a large number of labels are involved.
-        if (keepTopKLabels < Integer.MAX_VALUE) {
-          ProbUtil.KeepTopScoringKeys(vertexNewDist, keepTopKLabels)
-          if (vertexNewDist.size > keepTopKLabels)
-            throw new RuntimeException("size mismatch: " + 
-                                       vertexNewDist.size + " " + keepTopKLabels)
+          // update all vertices with new estimated label scores; vertices
+          // which are not updated in this iteration keep their old scores.
+          metrics.startPhase(RunMetrics.APPLY)
+          par.foreach(csr.numVertices) { vi =>
+            if (computed(vi) && isUpdated(vi, iter, useBipartiteOptimization)) {
+              deltas(vi) =
+                ProbUtil.GetDifferenceNorm2Squarred(labels.estimated, vi, 1.0,
+                                                    newDist, vi, 1.0, scratch.get)
+              changed(vi) = deltas(vi) > options.activeSetTolerance
+            } else {
+              deltas(vi) = 0.0
+              changed(vi) = false
+              newDist.copyRow(vi, labels.estimated, vi)
+            }
+          }
+          labels.swapEstimated
         }
-				
-        // normalize in case of Adsorption
-        normalizeScores(v, vertexNewDist)
-
-        // Store the new distribution for later update
-        newDist.put(vName, vertexNewDist)
-      }	
 
-      var deltaLabelDiff = 0.0
-      var totalColumnUpdates = 0
-      var totalEntityUpdates = 0
-		
-      // update all vertices with new estimated label scores
-      for (vName <- g.vertices.keySet) {
-        val v: Vertex = g.vertices.get(vName)
-        val vertexNewDist = newDist.get(vName)
-				
-        if (!useBipartiteOptimization) {
-          deltaLabelDiff += 
-            ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1.0, 
-                                                vertexNewDist, 1.0)
-          v.SetEstimatedLabelScores(vertexNewDist)
-        } else {
-          // update column node labels on odd iterations
-          if (Flags.IsColumnNode(vName) && (iter % 2 == 0)) {
-            totalColumnUpdates += 1
-            deltaLabelDiff += 
-              ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1.0,
-                                                vertexNewDist, 1.0)
-            v.SetEstimatedLabelScores(vertexNewDist)
+        var deltaLabelDiff = 0.0
+        var totalColumnUpdates = 0
+        var totalEntityUpdates = 0
+        var frontierSize = 0
+        var nextFrontierSize = 0
+        var edgesProcessed = 0L
+        var verticesComputed = 0
+        var verticesUpdated = 0
+        if (histogram != null)
+          java.util.Arrays.fill(histogram, 0L)
+        for (vi <- 0 until csr.numVertices) {
+          deltaLabelDiff += deltas(vi)
+          if (computed(vi) && (!gaussSeidel || isUpdated(vi, iter, useBipartiteOptimization))) {
+            verticesComputed += 1
+            edgesProcessed += csr.offsets(vi + 1) - csr.offsets(vi)
+            if (isUpdated(vi, iter, useBipartiteOptimization))
+              verticesUpdated += 1
           }
-						
-          // update entity labels on even iterations
-          if (!Flags.IsColumnNode(vName) && (iter % 2 == 1)) {
-            totalEntityUpdates += 1 
-            deltaLabelDiff += 
-              ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1.0,
-                                                vertexNewDist, 1.0)
-            v.SetEstimatedLabelScores(vertexNewDist)
+          if (histogram != null)
+            histogram(RunMetrics.Bucket(labels.estimated.count(vi))) += 1
+          if (useBipartiteOptimization && isUpdated(vi, iter, true)) {
+            if (Flags.IsColumnNode(csr.name(vi)))
+              totalColumnUpdates += 1
+            else
+              totalEntityUpdates += 1
           }
+          if (computed(vi))
+            frontierSize += 1
+          if (changed(vi) || pending(vi))
+            nextFrontierSize += 1
         }
-      }
-			
-      val endTime = System.currentTimeMillis
 			
-      // clear map
-      newDist.clear
+        val endTime = System.currentTimeMillis
 			
-      val totalNodes = g.vertices.size
-      val deltaLabelDiffPerNode = (1.0 * deltaLabelDiff) / totalNodes
+        val totalNodes = csr.numVertices
+        val deltaLabelDiffPerNode = (1.0 * deltaLabelDiff) / totalNodes
+
+        if (useActiveSet)
+          logger.info("frontier_size: " + frontierSize +
+                      " label_diff_per_node: " + deltaLabelDiffPerNode)
+
+        // track convergence of the in-place updates (verbose reports both
+        // below anyway)
+        if (gaussSeidel && !verbose)
+          logger.info("objective: " + getGraphObjective(par, scratch) +
+                      " label_diff_per_node: " + deltaLabelDiffPerNode)
+
+        // In the active set mode, stop once no vertex is left to recompute,
+        // or once the scores have stopped moving (with the bipartite
+        // optimization, only after both sides have been updated).
+        if (useActiveSet) {
+          if (nextFrontierSize == 0) {
+            logger.info("Frontier is empty, stopping after iteration " + iter)
+            converged = true
+          } else if (deltaLabelDiffPerNode <= Constants.GetStoppingThreshold &&
+                     (!useBipartiteOptimization || iter > 1)) {
+            logger.info("Convergence reached after iteration " + iter)
+            converged = true
+          }
+        }
 
-      val res = Map(Constants.GetMRRString -> GraphEval.GetAverageTestMRR(g),
-                    Constants.GetPrecisionString -> GraphEval.GetAccuracy(g))
+        // the last iteration is always evaluated
+        if (options.evaluateAt(iter, iter == maxIter || converged)) {
+          metrics.startPhase(RunMetrics.EVALUATE)
+          val eval = evaluator.Evaluate
+          val res = Map(Constants.GetMRRString -> eval.testMRR,
+                        Constants.GetPrecisionString -> eval.accuracy)
 
-      resultList.add(res)
+          resultList.add(res)
 
-      if (verbose)
-        logger.info(
-                "after_iteration " + iter +
-                " objective: " + getGraphObjective +
-                " accuracy: " + res(Constants.GetPrecisionString) +
-                " rmse: " + GraphEval.GetRMSE(g) +
-                " time: " + (endTime - startTime) +
-                " label_diff_per_node: " + deltaLabelDiffPerNode +
-                " mrr_train: " + GraphEval.GetAverageTrainMRR(g) +
-                " mrr_test: " + res(Constants.GetMRRString) +
-                " column_updates: " + totalColumnUpdates +
-                " entity_updates: " + totalEntityUpdates + "\n")
-			
+          if (verbose)
+            logger.info(
+                    "after_iteration " + iter +
+                    " objective: " + getGraphObjective(par, scratch) +
+                    " accuracy: " + eval.accuracy +
+                    " rmse: " + eval.rmse +
+                    " time: " + (endTime - startTime) +
+                    " label_diff_per_node: " + deltaLabelDiffPerNode +
+                    " mrr_train: " + eval.trainMRR +
+                    " mrr_test: " + eval.testMRR +
+                    " column_updates: " + totalColumnUpdates +
+                    " entity_updates: " + totalEntityUpdates + "\n")
+        } else if (verbose) {
+          logger.info(
+                  "after_iteration " + iter +
+                  " time: " + (endTime - startTime) +
+                  " label_diff_per_node: " + deltaLabelDiffPerNode +
+                  " column_updates: " + totalColumnUpdates +
+                  " entity_updates: " + totalEntityUpdates + "\n")
+        }
+
+        metrics.endIteration(edgesProcessed, verticesComputed, verticesUpdated,
+                             deltaLabelDiffPerNode, histogram)
+        checkpoint.afterIteration(iter, labels)
+        iter += 1
+      }
+    } finally {
+      par.shutdown
+      metrics.close
+      checkpoint.close
     }
     logger.info("")
-		
+  }
+
+  // With the bipartite optimization, column nodes are updated on even
+  // iterations and entity nodes on odd ones; otherwise every vertex is
+  // updated on every iteration.
+  def isUpdated (vi: Int, iter: Int, useBipartiteOptimization: Boolean) =
+    if (!useBipartiteOptimization) true
+    else if (Flags.IsColumnNode(labels.csr.name(vi))) iter % 2 == 0
+    else iter % 2 == 1
+
+  // The coefficient with which the scores of the target of each CSR edge
+  // enter the new scores of its source, i.e. mu2 * getMultiplier. The
+  // random walk probabilities and edge weights do not change during a
+  // run, so these are computed once, aligned with the edge arrays.
+  def computeEdgeCoefficients (csr: CsrGraph): Array[Double] = {
+    val coefficients = new Array[Double](csr.numEdges)
+    for (vi <- 0 until csr.numVertices) {
+      val v: Vertex = csr.vertices(vi)
+      var ei = csr.offsets(vi)
+      while (ei < csr.offsets(vi + 1)) {
+        val neigh: Vertex = csr.vertices(csr.targets(ei))
+        val mult = getMultiplier(v, neigh, csr.weights(ei), csr.reverseWeights(ei))
+
+        if (mult <= 0) 
+          throw new RuntimeException("Non-positive weighted edge:>>" +
+                                     neigh.name + "-->" + v.name + "<<" + " " + mult)
+
+        coefficients(ei) = mult * mu2
+        ei += 1
+      }
+    }
+    coefficients
+  }
+
+  // In the active set mode, a vertex is recomputed when it is updated in
+  // this iteration and one of its neighbors changed since it was last
+  // recomputed. Only state of vi itself is written.
+  def isActive (vi: Int, iter: Int, useBipartiteOptimization: Boolean,
+                changed: Array[Boolean], pending: Array[Boolean]): Boolean = {
+    val csr = labels.csr
+    var ei = csr.offsets(vi)
+    while (!pending(vi) && ei < csr.offsets(vi + 1)) {
+      if (changed(csr.targets(ei)))
+        pending(vi) = true
+      ei += 1
+    }
+    if (pending(vi) && isUpdated(vi, iter, useBipartiteOptimization)) {
+      pending(vi) = false
+      true
+    } else {
+      false
+    }
+  }
+
+  // compute the new label distribution of vertex vi from the current
+  // estimates into vertexNewDist
+  def computeNewDist (vi: Int, iter: Int, verbose: Boolean, vertexNewDist: LabelAccumulator) {
+    val csr = labels.csr
+    val v: Vertex = csr.vertices(vi)
+
+    vertexNewDist.clear
+							
+    // compute weighted neighborhood label distribution
+    var ei = csr.offsets(vi)
+    while (ei < csr.offsets(vi + 1)) {
+      val ni = csr.targets(ei)
+
+      if (verbose)
+        logger.info(v.name + " " + v.pcontinue + " " +
+                csr.weights(ei) + " " +
+                csr.vertices(ni).pcontinue + " " + csr.reverseWeights(ei))
+
+      ProbUtil.AddScores(vertexNewDist, edgeCoefficients(ei), labels.estimated, ni)
+      ei += 1
+    }
+				
+    if (verbose)
+      logger.info("Before norm: " + v.name + " " + ProbUtil.GetSum(vertexNewDist))
+
+    normalizeIfNecessary(vertexNewDist)
+								
+    if (verbose) 
+      logger.info("After norm: " + v.name + " " + ProbUtil.GetSum(vertexNewDist))
+				
+    // add injection probability
+    ProbUtil.AddScores(vertexNewDist, v.pinject * mu1, labels.injected, vi)
+	
+    if (verbose)
+      logger.info(iter + " after_inj " + v.name + " " +
+              ProbUtil.GetSum(vertexNewDist) + 
+              " " + CollectionUtil.Map2String(labels.toMap(vertexNewDist)) +
+              " mu1: " + mu1)
+
+    // add dummy label distribution
+    ProbUtil.AddScore(vertexNewDist,
+                      v.pabandon * mu3,
+                      LabelAlphabet.DUMMY_LABEL)
+				
+    if (verbose)
+      logger.info(
+              iter + " after_dummy " + v.name + " " +
+              ProbUtil.GetSum(vertexNewDist) + " " +
+              CollectionUtil.Map2String(labels.toMap(vertexNewDist)) +
+              " injected: " + CollectionUtil.Map2String(labels.toMap(labels.injected, vi)))
+				
+    // keep only the top scoring k labels, this is particularly useful
+    // when a large number of labels are involved.
+    if (keepTopKLabels < Integer.MAX_VALUE) {
+      ProbUtil.KeepTopScoringKeys(vertexNewDist, keepTopKLabels)
+      if (vertexNewDist.size > keepTopKLabels)
+        throw new RuntimeException("size mismatch: " + 
+                                   vertexNewDist.size + " " + keepTopKLabels)
+    }
+				
+    // normalize in case of Adsorption
+    normalizeScores(vi, v, vertexNewDist)
   }
 	
-  def getObjective (v: Vertex): Double = {
+  def getObjective (vi: Int, scratch: LabelAccumulator): Double = {
+    val csr = labels.csr
+    val v = csr.vertices(vi)
 
     // difference with injected labels
     val seedObjective = 
       if (v.isSeedNode)
         (mu1 * v.pinject *
-         ProbUtil.GetDifferenceNorm2Squarred(v.injectedLabels, 1, v.estimatedLabels, 1))
+         ProbUtil.GetDifferenceNorm2Squarred(labels.injected, vi, 1,
+                                             labels.estimated, vi, 1, scratch))
       else
         0.0
 	
     // difference with labels of neighbors
-    val neighObjective = v.GetNeighborNames.map(
-      neighbor => (mu2 * v.GetNeighborWeight(neighbor) *
-                   ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1,
-                                                       g.vertices.get(neighbor).estimatedLabels, 1))
+    val neighObjective = (csr.offsets(vi) until csr.offsets(vi + 1)).map(
+      ei => (mu2 * csr.weights(ei) *
+             ProbUtil.GetDifferenceNorm2Squarred(labels.estimated, vi, 1,
+                                                 labels.estimated, csr.targets(ei), 1,
+                                                 scratch))
     ).sum
 
     // difference with dummy labels
     val dummyObjective = mu3 * ProbUtil.GetDifferenceNorm2Squarred(
-      Constants.GetDummyLabelDist, v.pabandon, v.estimatedLabels, 1
+      labels.estimated, vi, 1, LabelAlphabet.DUMMY_LABEL, v.pabandon, scratch
     )
     
     seedObjective + neighObjective + dummyObjective
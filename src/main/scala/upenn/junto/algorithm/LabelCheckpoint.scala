@@ -0,0 +1,172 @@
+package upenn.junto.algorithm
+
+import java.io.{BufferedInputStream, DataInputStream, DataOutputStream, File, FileInputStream, IOException}
+import upenn.junto.graph.{CsrGraph, LabelState}
+import upenn.junto.util.{AsyncFileWriter, LabelAlphabet, LabelStore}
+import com.typesafe.scalalogging.log4j.Logging
+
+/**
+ * Checkpoints of the estimated label scores of a run, written every
+ * options.checkpointFrequency iterations to options.checkpointFile,
+ * in the background (see AsyncFileWriter), and read back to resume a
+ * run after the iteration at which the checkpoint was taken.
+ *
+ * A checkpoint holds the iteration number, a fingerprint of the graph
+ * (so that it is not resumed on a different graph), the algorithm and
+ * its mu values (so that it is not resumed by a different run), the
+ * labels by name, and the (label id, score) entries with a non-zero
+ * score of every vertex in CSR id order. Resuming restores the scores
+ * exactly, so a resumed run goes on as the interrupted one would have;
+ * only the active set, if used, starts over with every vertex pending.
+ */
+class LabelCheckpoint (options: PropagationOptions, algorithm: String, mus: Array[Double])
+extends Logging {
+
+  private val filename = options.checkpointFile
+
+  private val writer =
+    if (filename != null && options.checkpointFrequency > 0) new AsyncFileWriter(filename)
+    else null
+
+  // copy of the scores being written, reused by every checkpoint
+  private var buffer: LabelStore = null
+
+  // Restore the estimated scores from the checkpoint if resuming, and
+  // return the iteration it was taken after, or 0 to start from scratch.
+  def resume (labels: LabelState): Int = {
+    if (!options.resume) {
+      0
+    } else if (filename == null || !new File(filename).exists) {
+      logger.info("No checkpoint to resume from, starting from scratch")
+      0
+    } else {
+      val iter = LabelCheckpoint.read(filename, labels, algorithm, mus)
+      logger.info("Resuming from checkpoint " + filename + " after iteration " + iter)
+      iter
+    }
+  }
+
+  def afterIteration (iter: Int, labels: LabelState) {
+    if (writer != null && iter % options.checkpointFrequency == 0) {
+      // the previous checkpoint must be written before its buffer is reused
+      writer.await
+      if (buffer == null)
+        buffer = labels.estimated.createEmpty
+      var vi = 0
+      while (vi < labels.numVertices) {
+        buffer.copyRow(vi, labels.estimated, vi)
+        vi += 1
+      }
+
+      val store = buffer
+      writer.submit(new AsyncFileWriter.Payload {
+        def writeTo (out: DataOutputStream) {
+          LabelCheckpoint.write(out, iter, labels.csr, algorithm, mus, labels.alphabet, store)
+        }
+      })
+    }
+  }
+
+  // wait for the last checkpoint to be written
+  def close () {
+    if (writer != null)
+      writer.close
+  }
+
+}
+
+object LabelCheckpoint {
+
+  val Magic = 0x4a4e4350
+  val Version = 2
+
+  // identifies the vertices of the graph and their order
+  def fingerprint (csr: CsrGraph): Long = {
+    var h = csr.numEdges.toLong
+    var vi = 0
+    while (vi < csr.numVertices) {
+      h = 31 * h + csr.name(vi).hashCode
+      vi += 1
+    }
+    h
+  }
+
+  def write (out: DataOutputStream, iter: Int, csr: CsrGraph,
+             algorithm: String, mus: Array[Double],
+             alphabet: LabelAlphabet, store: LabelStore) {
+    out.writeInt(Magic)
+    out.writeInt(Version)
+    out.writeInt(iter)
+    out.writeInt(csr.numVertices)
+    out.writeLong(fingerprint(csr))
+
+    out.writeUTF(algorithm)
+    out.writeInt(mus.length)
+    mus.foreach(out.writeDouble(_))
+
+    out.writeInt(alphabet.size)
+    for (li <- 0 until alphabet.size)
+      out.writeUTF(alphabet.getLabel(li))
+
+    var vi = 0
+    while (vi < store.numRows) {
+      out.writeInt(store.count(vi))
+      var i = 0
+      while (i < store.size(vi)) {
+        val score = store.scoreAt(vi, i)
+        if (score != 0) {
+          out.writeInt(store.labelAt(vi, i))
+          out.writeDouble(score)
+        }
+        i += 1
+      }
+      vi += 1
+    }
+  }
+
+  // Read a checkpoint into the estimated scores of labels, returning the
+  // iteration it was taken after.
+  def read (filename: String, labels: LabelState,
+            algorithm: String, mus: Array[Double]): Int = {
+    val in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 20))
+    try {
+      if (in.readInt != Magic || in.readInt != Version)
+        throw new IOException(filename + " is not a label checkpoint")
+      val iter = in.readInt
+      if (in.readInt != labels.numVertices || in.readLong != fingerprint(labels.csr))
+        throw new IOException("Checkpoint " + filename + " was taken on a different graph")
+      val takenBy = in.readUTF
+      val takenWith = Array.fill(in.readInt)(in.readDouble)
+      if (takenBy != algorithm || !java.util.Arrays.equals(takenWith, mus))
+        throw new IOException("Checkpoint " + filename + " was taken by " + takenBy +
+                              " with mu values " + takenWith.mkString(",") +
+                              ", not by " + algorithm + " with " + mus.mkString(","))
+
+      // map the label ids of the checkpoint to those of this run
+      val labelIds = new Array[Int](in.readInt)
+      for (li <- 0 until labelIds.length) {
+        val label = in.readUTF
+        labelIds(li) = labels.alphabet.getLabelId(label)
+        if (labelIds(li) < 0)
+          throw new IOException("Checkpoint " + filename + " holds unknown label " + label)
+      }
+
+      val acc = labels.newAccumulator
+      var vi = 0
+      while (vi < labels.numVertices) {
+        acc.clear
+        var i = in.readInt
+        while (i > 0) {
+          acc.put(labelIds(in.readInt), in.readDouble)
+          i -= 1
+        }
+        labels.estimated.set(vi, acc)
+        vi += 1
+      }
+      iter
+    } finally {
+      in.close
+    }
+  }
+
+}
@@ -2,20 +2,41 @@ package upenn.junto.algorithm
 
 import java.util.ArrayList
 import gnu.trove.map.hash.TObjectDoubleHashMap
-import upenn.junto.graph.{Graph, Vertex}
+import upenn.junto.graph.{Graph, LabelState, Vertex}
+import upenn.junto.util.LabelAccumulator
 import scala.collection.JavaConversions._
 
 abstract class LabelPropagationAlgorithm (graph: Graph) {
 
+  // Run the propagation in a LabelState of its own (see
+  // LabelState.initial), leaving the graph as it is.
   def run (maxIter: Int, useBipartiteOptimization: Boolean,
            verbose: Boolean, resultList: ArrayList[Map[String,Double]])
 
-  def getObjective (vertex: Vertex): Double
+  // label distributions of the last run, by CSR vertex id
+  def labels: LabelState
 
-  def getGraphObjective: Double =
-    graph.vertices.keySet.iterator.foldLeft(0.0)(
-      (obj, vName) => obj + getObjective(graph.vertices.get(vName))
-    )
+  // objective of the vertex with the given CSR id, using scratch (see
+  // LabelState.newAccumulator) to compare label distributions
+  def getObjective (vi: Int, scratch: LabelAccumulator): Double
+
+  // Objective of the whole graph: the vertex objectives are computed by
+  // par, each worker with its own scratch, and summed in id order.
+  def getGraphObjective (par: VertexParallelizer,
+                         scratch: ThreadLocal[LabelAccumulator]): Double = {
+    val numVertices = graph.csr.numVertices
+    val objectives = new Array[Double](numVertices)
+    par.foreach(numVertices) { vi =>
+      objectives(vi) = getObjective(vi, scratch.get)
+    }
+    var obj = 0.0
+    var vi = 0
+    while (vi < numVertices) {
+      obj += objectives(vi)
+      vi += 1
+    }
+    obj
+  }
 
 
 }
@@ -1,13 +1,15 @@
 package upenn.junto.algorithm
 
 import upenn.junto.config.Flags
-import upenn.junto.eval.GraphEval
+import upenn.junto.eval.LabelStateEvaluator
 import upenn.junto.graph._
 import upenn.junto.util.Constants
+import upenn.junto.util.LabelAccumulator
 import upenn.junto.util.MessagePrinter
 import upenn.junto.util.ProbUtil
+import upenn.junto.util.RunMetrics
 
-import java.util.{ArrayList,HashMap,Iterator}
+import java.util.ArrayList
 
 import gnu.trove.list.array.TDoubleArrayList
 import gnu.trove.map.hash.TObjectDoubleHashMap
@@ -24,168 +26,200 @@ import scala.collection.JavaConversions._
  * http://pages.cs.wisc.edu/~jerryzhu/pub/CMU-CALD-02-107.pdf
  *
  */
-class LpZgl (g: Graph, mu2: Double, keepTopKLabels: Int) 
+class LpZgl (g: Graph, mu2: Double, keepTopKLabels: Int,
+             options: PropagationOptions = PropagationOptions())
 extends LabelPropagationAlgorithm(g) {
 
+  // label distributions of the current run, by CSR vertex id
+  var labels: LabelState = null
+
   def run (maxIter: Int, useBipartiteOptimization: Boolean, 
            verbose: Boolean, resultList: ArrayList[Map[String,Double]]) {
 		
-    var totalSeedNodes = 0
-		
-    // -- normalize edge weights
-    // -- remove dummy label from injected or estimate labels.
-    // -- if seed node, then initialize estimated labels with injected
-    for (vName <- g.vertices.keySet.iterator) {
-      val v: Vertex = g.vertices.get(vName)
-			
-      // remove dummy label: after normalization, some of the distributions
-      // may not be valid probability distributions, but that is fine as the
-      // algorithm doesn't require the scores to be normalized (to start with)
-      v.SetInjectedLabelScore(Constants.GetDummyLabel, 0.0)
-      ProbUtil.Normalize(v.injectedLabels)
-			
-      if (v.isSeedNode) {
-        totalSeedNodes += 1
-        v.SetEstimatedLabelScores(new TObjectDoubleHashMap[String](v.injectedLabels))
-      } else {
-        v.SetEstimatedLabelScore(Constants.GetDummyLabel, 0.0)
-        ProbUtil.Normalize(v.estimatedLabels)
-      }
-    }
-		
+    val csr = g.csr
+    val totalSeedNodes = csr.vertices.count(_.isSeedNode)
     if (totalSeedNodes <= 0)
       MessagePrinter.PrintAndDie("No seed nodes!! Total: " + totalSeedNodes)
+
+    // the injected labels normalized, and seeds starting from them
+    labels = LabelState.initial(g, keepTopKLabels, true)
+
+    // pick up the scores of an interrupted run, if resuming
+    val checkpoint = new LabelCheckpoint(options, getClass.getSimpleName, Array(mu2))
+    val resumedIter = checkpoint.resume(labels)
+
+    // scratch distributions, one per worker
+    val scratch = new ThreadLocal[LabelAccumulator] {
+      override def initialValue = labels.newAccumulator
+    }
+
+    // performance figures of every iteration
+    val metrics = options.newMetrics(getClass.getSimpleName)
+    val par = new VertexParallelizer(options.numThreads)
+    try {
+      val deltas = new Array[Double](csr.numVertices)
 		
-    if (verbose)
-      println("after_iteration " + 0 + 
-              " objective: " + getGraphObjective +
-              " accuracy: " + GraphEval.GetAccuracy(g) +
-              " rmse: " + GraphEval.GetRMSE(g) +
-              " mrr_train: " + GraphEval.GetAverageTrainMRR(g) +
-              " mrr_test: " + GraphEval.GetAverageTestMRR(g))
-
-    print("Iteration:");
-    for (iter <- 1 to maxIter) {
-      print(" " + iter)
+      val evaluator = new LabelStateEvaluator(labels)
+
+      // counting the labels of every vertex takes a pass over all the
+      // scores, so only done when the metrics are published
+      val histogram = if (metrics.isEnabled) RunMetrics.NewHistogram else null
+		
+      if (verbose) {
+        val eval = evaluator.Evaluate
+        println("after_iteration " + resumedIter + 
+                " objective: " + getGraphObjective(par, scratch) +
+                " accuracy: " + eval.accuracy +
+                " rmse: " + eval.rmse +
+                " mrr_train: " + eval.trainMRR +
+                " mrr_test: " + eval.testMRR)
+      }
+
+      print("Iteration:");
+      for (iter <- resumedIter + 1 to maxIter) {
+        print(" " + iter)
 			
-      val startTime = System.currentTimeMillis
+        val startTime = System.currentTimeMillis
+        metrics.startIteration(iter)
+        metrics.startPhase(RunMetrics.COMPUTE)
 
-      val newDist = new HashMap[String, TObjectDoubleHashMap[String]]()
+        val newDist = labels.nextEstimated
 
-      for (vName <- g.vertices.keySet.iterator) {
-        val v: Vertex = g.vertices.get(vName)
+        par.foreach(csr.numVertices) { vi =>
+          val v: Vertex = csr.vertices(vi)
 				
-        // if the current node is a seed node, then there is no need
-        // to estimate new labels.
-        if (!v.isSeedNode) {
-          // if not present already, create a new label score map
-          // for the current hash map. otherwise, it is an error
-          if (!newDist.containsKey(vName))
-            newDist.put(vName, new TObjectDoubleHashMap[String])
-          else
-            MessagePrinter.PrintAndDie("Duplicate node found: " + vName)
-					
-          // compute weighted neighborhood label distribution
-          for (neighName <- v.GetNeighborNames) {
-            val neigh: Vertex = g.vertices.get(neighName)
-            val mult = neigh.GetNeighborWeight(vName)
-            if (mult <= 0)
-              MessagePrinter.PrintAndDie("Zero weight edge: " +
-                                         neigh.name + " --> " + v.name)
-	
-            ProbUtil.AddScores(newDist.get(vName),
-                               mult * mu2,
-                               neigh.estimatedLabels)
+          // if the current node is a seed node, then there is no need
+          // to estimate new labels: it is clamped back to its original
+          // injected label distribution.
+          if (!v.isSeedNode) {
+            val vertexNewDist = scratch.get
+            computeNewDist(vi, vertexNewDist)
+            newDist.set(vi, vertexNewDist)
+          } else {
+            newDist.copyRow(vi, labels.injected, vi)
           }
-	
-          // normalize newly estimated label scores
-          ProbUtil.Normalize(newDist.get(vName), keepTopKLabels)
-        } else {
-          newDist.put(v.name, new TObjectDoubleHashMap[String](v.estimatedLabels))
         }
-      }
-
-      var deltaLabelDiff = 0.0
-			
-      // update all vertices with new estimated label scores
-      for (vName <- g.vertices.keySet.iterator) {
-        val v: Vertex = g.vertices.get(vName)
 
-        // normalize and retain only top scoring labels
-        ProbUtil.Normalize(newDist.get(vName), keepTopKLabels)
-				
-        // if this is a seed node, then clam back the original
-        // injected label distribution.
-        if (v.isSeedNode) {
-          v.SetEstimatedLabelScores(new TObjectDoubleHashMap[String](v.injectedLabels))
-        } else {
-          if (!useBipartiteOptimization) {
-            deltaLabelDiff +=
-              ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1.0,
-                                                  newDist.get(vName), 1.0);
-            v.SetEstimatedLabelScores(new TObjectDoubleHashMap[String](newDist.get(vName)))
-          } else {						
-            // update column node labels on odd iterations
-            if (Flags.IsColumnNode(vName) && (iter % 2 == 0)) {
-              deltaLabelDiff +=
-                ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1.0,
-                                                    newDist.get(vName), 1.0)
-              v.SetEstimatedLabelScores(new TObjectDoubleHashMap[String](newDist.get(vName)))
-            }
-						
-            // update entity labels on even iterations
-            if (!Flags.IsColumnNode(vName) && (iter % 2 == 1)) {
-              deltaLabelDiff +=
-                ProbUtil.GetDifferenceNorm2Squarred(v.estimatedLabels, 1.0,
-                                                    newDist.get(vName), 1.0)
-              v.SetEstimatedLabelScores(new TObjectDoubleHashMap[String](newDist.get(vName)))
+        // update all vertices with new estimated label scores; vertices
+        // which are not updated in this iteration keep their old scores.
+        metrics.startPhase(RunMetrics.APPLY)
+        par.foreach(csr.numVertices) { vi =>
+          val v: Vertex = csr.vertices(vi)
+          val vName = v.name
+          deltas(vi) = 0.0
+
+          if (!v.isSeedNode) {
+            // with the bipartite optimization, update column node labels
+            // on odd iterations and entity labels on even iterations
+            if (!useBipartiteOptimization ||
+                (Flags.IsColumnNode(vName) && (iter % 2 == 0)) ||
+                (!Flags.IsColumnNode(vName) && (iter % 2 == 1))) {
+              deltas(vi) =
+                ProbUtil.GetDifferenceNorm2Squarred(labels.estimated, vi, 1.0,
+                                                    newDist, vi, 1.0, scratch.get)
+            } else {
+              newDist.copyRow(vi, labels.estimated, vi)
             }
           }
         }
-      }
-			
-      val endTime = System.currentTimeMillis
+        labels.swapEstimated
+
+        // seeds are clamped rather than computed
+        var deltaLabelDiff = 0.0
+        var edgesProcessed = 0L
+        var verticesComputed = 0
+        var verticesUpdated = 0
+        if (histogram != null)
+          java.util.Arrays.fill(histogram, 0L)
+        for (vi <- 0 until csr.numVertices) {
+          deltaLabelDiff += deltas(vi)
+          if (!csr.vertices(vi).isSeedNode) {
+            verticesComputed += 1
+            edgesProcessed += csr.offsets(vi + 1) - csr.offsets(vi)
+            if (!useBipartiteOptimization || Flags.IsColumnNode(csr.name(vi)) == (iter % 2 == 0))
+              verticesUpdated += 1
+          }
+          if (histogram != null)
+            histogram(RunMetrics.Bucket(labels.estimated.count(vi))) += 1
+        }
 			
-      // clear map
-      newDist.clear
+        val endTime = System.currentTimeMillis
 			
-      val totalNodes = g.vertices.size
-      val deltaLabelDiffPerNode = (1.0 * deltaLabelDiff) / totalNodes
+        val totalNodes = csr.numVertices
+        val deltaLabelDiffPerNode = (1.0 * deltaLabelDiff) / totalNodes
+
+        if (verbose && options.evaluateAt(iter, iter == maxIter)) {
+          metrics.startPhase(RunMetrics.EVALUATE)
+          val eval = evaluator.Evaluate
+          val res = Map(Constants.GetMRRString -> eval.testMRR,
+                        Constants.GetPrecisionString -> eval.accuracy)
+
+          resultList.add(res)
+
+          println("\nafter_iteration " + iter +
+                  " objective: " + getGraphObjective(par, scratch) +
+                  " accuracy: " + eval.accuracy +
+                  " rmse: " + eval.rmse +
+                  " time: " + (endTime - startTime) +
+                  " label_diff_per_node: " + deltaLabelDiffPerNode +
+                  " mrr_train: " + eval.trainMRR +
+                  " mrr_test: " + eval.testMRR)
+        }
 
-      if (verbose) {
-        val res = Map(Constants.GetMRRString -> GraphEval.GetAverageTestMRR(g),
-                      Constants.GetPrecisionString -> GraphEval.GetAccuracy(g))
-
-        resultList.add(res)
-
-        println("\nafter_iteration " + iter +
-                " objective: " + getGraphObjective +
-                " accuracy: " + res(Constants.GetPrecisionString) +
-                " rmse: " + GraphEval.GetRMSE(g) +
-                " time: " + (endTime - startTime) +
-                " label_diff_per_node: " + deltaLabelDiffPerNode +
-                " mrr_train: " + GraphEval.GetAverageTrainMRR(g) +
-                " mrr_test: " + res(Constants.GetMRRString))
+        metrics.endIteration(edgesProcessed, verticesComputed, verticesUpdated,
+                             deltaLabelDiffPerNode, histogram)
+        checkpoint.afterIteration(iter, labels)
       }
-			
+    } finally {
+      par.shutdown
+      metrics.close
+      checkpoint.close
     }
-		
   }
 
-  def getObjective (v: Vertex): Double = {
+  // compute the new label distribution of the (non-seed) vertex vi from
+  // the current estimates into vertexNewDist
+  def computeNewDist (vi: Int, vertexNewDist: LabelAccumulator) {
+    val csr = labels.csr
+    vertexNewDist.clear
+					
+    // compute weighted neighborhood label distribution
+    var ei = csr.offsets(vi)
+    while (ei < csr.offsets(vi + 1)) {
+      val ni = csr.targets(ei)
+      val mult = csr.reverseWeights(ei)
+      if (mult <= 0)
+        MessagePrinter.PrintAndDie("Zero weight edge: " +
+                                   csr.name(ni) + " --> " + csr.name(vi))
+	
+      ProbUtil.AddScores(vertexNewDist,
+                         mult * mu2,
+                         labels.estimated, ni)
+      ei += 1
+    }
+	
+    // normalize newly estimated label scores, then normalize and
+    // retain only top scoring labels before the update
+    ProbUtil.Normalize(vertexNewDist, keepTopKLabels)
+    ProbUtil.Normalize(vertexNewDist, keepTopKLabels)
+  }
+
+  def getObjective (vi: Int, scratch: LabelAccumulator): Double = {
+    val csr = labels.csr
+    val v = csr.vertices(vi)
 
     var obj = 0.0
 		
     // difference with injected labels
     if (v.isSeedNode)
-      obj += ProbUtil.GetDifferenceNorm2Squarred(v.injectedLabels, 1,
-                                                 v.estimatedLabels, 1)
+      obj += ProbUtil.GetDifferenceNorm2Squarred(labels.injected, vi, 1,
+                                                 labels.estimated, vi, 1, scratch)
     // difference with labels of neighbors
-    for (neighbor <- v.GetNeighborNames)
-      obj += (v.GetNeighborWeight(neighbor) *
+    for (ei <- csr.offsets(vi) until csr.offsets(vi + 1))
+      obj += (csr.weights(ei) *
               ProbUtil.GetDifferenceNorm2Squarred(
-                v.estimatedLabels, 1,
-                g.vertices.get(neighbor).estimatedLabels, 1))
+                labels.estimated, vi, 1,
+                labels.estimated, csr.targets(ei), 1, scratch))
 	    
     obj
   }
@@ -0,0 +1,82 @@
+package upenn.junto.algorithm
+
+import java.util.Hashtable
+import upenn.junto.util.{Defaults, RunMetrics}
+
+/**
+ * Execution options of the label propagation algorithms, i.e. settings
+ * which change how a run is carried out rather than what it computes.
+ *
+ * numThreads: number of workers used for the per-vertex passes of an
+ *   iteration. Results do not depend on it.
+ * useActiveSet: only recompute the vertices a neighbor of which changed
+ *   by more than activeSetTolerance (L2 distance of its scores) in the
+ *   previous round, and stop early once none is left or the label
+ *   delta per node drops below Constants.GetStoppingThreshold.
+ *   Supported by Adsorption and MAD.
+ * updateMode: "jacobi" computes the new scores of all the vertices from
+ *   those of the previous iteration, "gauss_seidel" updates the
+ *   vertices in place, one at a time, in vertexOrder (see VertexOrder).
+ *   Supported by Adsorption and MAD.
+ * evalFrequency: evaluate (and add to the result list) every
+ *   evalFrequency iterations, and always after the last one; 0 means
+ *   after the last iteration only.
+ * checkpointFile, checkpointFrequency: write the estimated scores to
+ *   checkpointFile every checkpointFrequency iterations (see
+ *   LabelCheckpoint); 0 disables checkpoints.
+ * resume: restart from checkpointFile, if it exists, at the iteration
+ *   after the one it was taken at.
+ * engine: "local" runs the algorithms in this process with numThreads
+ *   workers, "actors" runs MAD on numShards Akka actors, each owning a
+ *   range of the vertices (see MadGraphRunner); numShards defaults to
+ *   numThreads. Results do not depend on either.
+ * metricsFile, metricsJmx: write the performance figures of every
+ *   iteration to metricsFile (JSON or CSV), and show them live as a JMX
+ *   MBean (see RunMetrics).
+ */
+case class PropagationOptions (
+  numThreads: Int = 1,
+  useActiveSet: Boolean = false,
+  activeSetTolerance: Double = 1e-6,
+  updateMode: String = "jacobi",
+  vertexOrder: String = "natural",
+  evalFrequency: Int = 1,
+  checkpointFile: String = null,
+  checkpointFrequency: Int = 1,
+  resume: Boolean = false,
+  metricsFile: String = null,
+  metricsJmx: Boolean = false,
+  engine: String = "local",
+  numShards: Int = 1
+) {
+
+  def evaluateAt (iter: Int, lastIter: Boolean) =
+    lastIter || (evalFrequency > 0 && iter % evalFrequency == 0)
+
+  def newMetrics (algorithm: String) =
+    new RunMetrics(algorithm, metricsFile, metricsJmx)
+
+}
+
+object PropagationOptions {
+
+  def apply (config: Hashtable[String,String]): PropagationOptions =
+    PropagationOptions(
+      numThreads = Defaults.GetValueOrDefault(config.get("num_threads"), 1),
+      useActiveSet = Defaults.GetValueOrDefault(config.get("use_active_set"), false),
+      activeSetTolerance =
+        Defaults.GetValueOrDefault(config.get("active_set_tolerance"), 1e-6),
+      updateMode = Defaults.GetValueOrDefault(config.get("update_mode"), "jacobi"),
+      vertexOrder = Defaults.GetValueOrDefault(config.get("vertex_order"), "natural"),
+      evalFrequency = Defaults.GetValueOrDefault(config.get("eval_frequency"), 1),
+      checkpointFile = config.get("checkpoint_file"),
+      checkpointFrequency = Defaults.GetValueOrDefault(config.get("checkpoint_frequency"), 1),
+      resume = Defaults.GetValueOrDefault(config.get("resume"), false),
+      metricsFile = config.get("metrics_file"),
+      metricsJmx = Defaults.GetValueOrDefault(config.get("metrics_jmx"), false),
+      engine = Defaults.GetValueOrDefault(config.get("engine"), "local"),
+      numShards = Defaults.GetValueOrDefault(config.get("num_shards"),
+                                             Defaults.GetValueOrDefault(config.get("num_threads"), 1))
+    )
+
+}
@@ -0,0 +1,77 @@
+package upenn.junto.algorithm
+
+import upenn.junto.graph.CsrGraph
+
+/**
+ * Deterministic orders in which to visit the vertices of a CsrGraph,
+ * used by the in-place (Gauss-Seidel) update mode, where the order
+ * decides which neighbors have already been updated when a vertex is
+ * visited.
+ *
+ *   natural:       CSR id order
+ *   degree:        highest degree first, ties in id order
+ *   seed_distance: breadth-first from all the seed vertices at once, so
+ *                  that label information flows outwards in one sweep;
+ *                  vertices not reachable from a seed come last, in id
+ *                  order
+ */
+object VertexOrder {
+
+  def apply (csr: CsrGraph, order: String): Array[Int] = order match {
+    case "natural" => natural(csr)
+    case "degree" => byDegree(csr)
+    case "seed_distance" => bySeedDistance(csr)
+    case _ => throw new RuntimeException("Unknown vertex order: " + order)
+  }
+
+  def natural (csr: CsrGraph): Array[Int] = Array.range(0, csr.numVertices)
+
+  def byDegree (csr: CsrGraph): Array[Int] =
+    // sortBy is stable, so vertices of equal degree stay in id order
+    natural(csr).sortBy(vi => -csr.degree(vi))
+
+  def bySeedDistance (csr: CsrGraph): Array[Int] = {
+    val n = csr.numVertices
+    val order = new Array[Int](n)
+    val visited = new Array[Boolean](n)
+
+    var tail = 0
+    var vi = 0
+    while (vi < n) {
+      if (csr.vertices(vi).isSeedNode) {
+        order(tail) = vi
+        visited(vi) = true
+        tail += 1
+      }
+      vi += 1
+    }
+
+    // the order array doubles as the BFS queue
+    var head = 0
+    while (head < tail) {
+      val u = order(head)
+      head += 1
+      var ei = csr.offsets(u)
+      while (ei < csr.offsets(u + 1)) {
+        val ni = csr.targets(ei)
+        if (!visited(ni)) {
+          visited(ni) = true
+          order(tail) = ni
+          tail += 1
+        }
+        ei += 1
+      }
+    }
+
+    vi = 0
+    while (vi < n) {
+      if (!visited(vi)) {
+        order(tail) = vi
+        tail += 1
+      }
+      vi += 1
+    }
+    order
+  }
+
+}
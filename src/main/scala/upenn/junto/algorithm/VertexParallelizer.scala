@@ -0,0 +1,65 @@
+package upenn.junto.algorithm
+
+import java.util.concurrent.{ForkJoinPool, ForkJoinTask, RecursiveAction}
+
+/**
+ * Runs a per-vertex body over the vertex ids [0, numVertices), either
+ * in order on the calling thread (numThreads = 1) or split into
+ * contiguous ranges of ids on a fork-join pool.
+ *
+ * The body must only write state owned by the vertex it is given (its
+ * row of a label store, its slot of an array), so that the result of a
+ * pass never depends on how the ids were split among the workers.
+ * Anything that needs to be combined across vertices, such as the
+ * total label delta of an iteration, should be stored per vertex and
+ * reduced in id order afterwards.
+ */
+class VertexParallelizer (val numThreads: Int) {
+
+  private val pool =
+    if (numThreads > 1) new ForkJoinPool(numThreads) else null
+
+  def foreach (numVertices: Int)(body: Int => Unit) {
+    if (pool == null) {
+      var vi = 0
+      while (vi < numVertices) {
+        body(vi)
+        vi += 1
+      }
+    } else {
+      // a few ranges per worker, so that uneven degrees balance out
+      val grain = math.max(VertexParallelizer.MinGrain,
+                           numVertices / (numThreads * 8))
+      pool.invoke(new VertexRange(0, numVertices, grain, body))
+    }
+  }
+
+  def shutdown () {
+    if (pool != null)
+      pool.shutdown
+  }
+
+}
+
+object VertexParallelizer {
+  val MinGrain = 256
+}
+
+private class VertexRange (start: Int, end: Int, grain: Int, body: Int => Unit)
+extends RecursiveAction {
+
+  def compute () {
+    if (end - start <= grain) {
+      var vi = start
+      while (vi < end) {
+        body(vi)
+        vi += 1
+      }
+    } else {
+      val mid = (start + end) >>> 1
+      ForkJoinTask.invokeAll(new VertexRange(start, mid, grain, body),
+                             new VertexRange(mid, end, grain, body))
+    }
+  }
+
+}
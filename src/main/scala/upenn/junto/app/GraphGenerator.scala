@@ -0,0 +1,250 @@
+package upenn.junto.app
+
+/**
+ * Copyright 2011 Partha Talukudar, Jason Baldridge
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.{BufferedWriter, FileOutputStream, OutputStreamWriter, Writer}
+import java.util.{Hashtable, Random}
+import upenn.junto.config.ConfigReader
+import upenn.junto.util.{Constants, Defaults}
+import com.typesafe.scalalogging.log4j.Logging
+
+/**
+ * Generate a synthetic labeled graph, for testing Junto at scale
+ * without real data. The generator reads a Junto config file and
+ * writes the files it names: graph_file (edge_factored), seed_file,
+ * gold_labels_file and, if given, test_file, in the usual
+ * <node>TAB<target or label>TAB<weight> format, so that the same config
+ * can then be run with "junto config". The generate_* options are:
+ *
+ *   generate_nodes            number of (instance) nodes, 10000 by default
+ *   generate_avg_degree       average number of edges per node, 10
+ *   generate_degree_exponent  exponent of the power-law degree
+ *                             distribution, 2.5
+ *   generate_labels           number of labels, 10
+ *   generate_homophily        probability that an edge is drawn between
+ *                             nodes of the same label rather than
+ *                             between any nodes, 0.8
+ *   generate_seed_fraction    fraction of the nodes which are seeds, 0.1
+ *   generate_test_fraction    fraction of the other nodes which are test
+ *                             nodes, 1.0
+ *   generate_feature_nodes    if positive, the number of C#-prefixed
+ *                             feature nodes: the graph is then bipartite,
+ *                             each node only linked to feature nodes
+ *   generate_random_seed      seed of the random generator, 0
+ *
+ * Every node is given a label uniformly at random and a weight drawn
+ * from a power law with the given exponent, scaled to the average
+ * degree. The edges of a node are drawn with probability proportional
+ * to the weights of their endpoints (the Chung-Lu model), so that the
+ * expected degree of a node is its weight. In a bipartite graph the
+ * feature nodes have power-law weights too, and each is associated with
+ * a label, which plays the part of the node label for homophily. Only
+ * the (instance) nodes get labels: all of them are gold labeled, and
+ * those which are not seeds are the candidate test nodes.
+ *
+ * The output only depends on the options, and the memory needed only on
+ * the number of nodes: edges are written as they are drawn, so graphs
+ * of hundreds of millions of edges can be generated.
+ */
+object GraphGenerator extends Logging {
+
+  def apply (config: Hashtable[String,String]) {
+    val numNodes = Defaults.GetValueOrDefault(config.get("generate_nodes"), 10000)
+    val avgDegree = Defaults.GetValueOrDefault(config.get("generate_avg_degree"), 10.0)
+    val exponent = Defaults.GetValueOrDefault(config.get("generate_degree_exponent"), 2.5)
+    val numLabels = Defaults.GetValueOrDefault(config.get("generate_labels"), 10)
+    val homophily = Defaults.GetValueOrDefault(config.get("generate_homophily"), 0.8)
+    val seedFraction = Defaults.GetValueOrDefault(config.get("generate_seed_fraction"), 0.1)
+    val testFraction = Defaults.GetValueOrDefault(config.get("generate_test_fraction"), 1.0)
+    val numFeatures = Defaults.GetValueOrDefault(config.get("generate_feature_nodes"), 0)
+    val randomSeed = Defaults.GetValueOrDefault(config.get("generate_random_seed"), 0)
+
+    if (numNodes < 2 || numLabels < 1 || exponent <= 1.0 || avgDegree <= 0.0)
+      throw new IllegalArgumentException(
+        "generate_nodes must be at least 2, generate_labels at least 1, " +
+        "generate_degree_exponent above 1 and generate_avg_degree positive")
+
+    val graphFile = Defaults.GetValueOrDie(config, "graph_file")
+    val seedFile = Defaults.GetValueOrDie(config, "seed_file")
+    val goldFile = Defaults.GetValueOrDie(config, "gold_labels_file")
+    val testFile = config.get("test_file")
+
+    // labels, weights, seeds and edges each have a random generator of
+    // their own, so that changing e.g. the homophily keeps the labels
+    val labels = drawLabels(numNodes, numLabels, new Random(randomSeed))
+    val weights = drawWeights(numNodes, exponent, avgDegree, new Random(randomSeed + 1L))
+    writeLabels(labels, seedFraction, testFraction, seedFile, goldFile, testFile,
+                new Random(randomSeed + 2L))
+
+    val edgeRand = new Random(randomSeed + 3L)
+    val numEdges =
+      if (numFeatures > 0) {
+        val featureLabels = Array.tabulate(numFeatures)(_ % numLabels)
+        val featureWeights = drawWeights(numFeatures, exponent, 1.0, new Random(randomSeed + 4L))
+        val targets = new TargetSampler(featureLabels, featureWeights, numLabels)
+        // the feature nodes have no edges of their own to draw
+        writeEdges(graphFile, labels, weights, 1.0, homophily, targets,
+                   Constants.GetFeatPrefix, edgeRand)
+      } else {
+        // every edge is drawn from one of its two endpoints
+        val targets = new TargetSampler(labels, weights, numLabels)
+        writeEdges(graphFile, labels, weights, 0.5, homophily, targets, "N", edgeRand)
+      }
+
+    logger.info("Generated " + numNodes + " nodes, " + numFeatures + " feature nodes and " +
+                numEdges + " edges in " + graphFile)
+  }
+
+  private def drawLabels (numNodes: Int, numLabels: Int, rand: Random): Array[Int] =
+    Array.fill(numNodes)(rand.nextInt(numLabels))
+
+  // Pareto distributed weights, scaled to the given mean and capped at
+  // the number of nodes
+  private def drawWeights (numNodes: Int, exponent: Double, mean: Double,
+                           rand: Random): Array[Double] = {
+    val weights = new Array[Double](numNodes)
+    var sum = 0.0
+    var vi = 0
+    while (vi < numNodes) {
+      weights(vi) = math.pow(1.0 - rand.nextDouble, -1.0 / (exponent - 1.0))
+      sum += weights(vi)
+      vi += 1
+    }
+    val scale = mean * numNodes / sum
+    vi = 0
+    while (vi < numNodes) {
+      weights(vi) = math.min(weights(vi) * scale, numNodes.toDouble)
+      vi += 1
+    }
+    weights
+  }
+
+  private def writeLabels (labels: Array[Int], seedFraction: Double, testFraction: Double,
+                           seedFile: String, goldFile: String, testFile: String,
+                           rand: Random) {
+    val seeds = newWriter(seedFile)
+    val gold = newWriter(goldFile)
+    val test = if (testFile != null) newWriter(testFile) else null
+    try {
+      var vi = 0
+      while (vi < labels.length) {
+        val line = "N" + vi + "\tL" + labels(vi) + "\t1.0\n"
+        gold.write(line)
+        if (rand.nextDouble < seedFraction)
+          seeds.write(line)
+        else if (rand.nextDouble < testFraction && test != null)
+          test.write(line)
+        vi += 1
+      }
+    } finally {
+      seeds.close
+      gold.close
+      if (test != null)
+        test.close
+    }
+  }
+
+  // Draw about edgesPerWeight * weights(vi) edges from each node vi to
+  // nodes drawn from targets, and return the number of edges written.
+  private def writeEdges (graphFile: String, labels: Array[Int], weights: Array[Double],
+                          edgesPerWeight: Double, homophily: Double,
+                          targets: TargetSampler, targetPrefix: String,
+                          rand: Random): Long = {
+    val out = newWriter(graphFile)
+    var numEdges = 0L
+    try {
+      var vi = 0
+      while (vi < labels.length) {
+        // round the expected number of edges up or down at random
+        val expected = edgesPerWeight * weights(vi)
+        var ei = expected.toInt + (if (rand.nextDouble < expected - expected.toInt) 1 else 0)
+        while (ei > 0) {
+          val target =
+            if (rand.nextDouble < homophily) targets.sample(labels(vi), rand)
+            else targets.sample(rand)
+          // no self loops in a non-bipartite graph
+          if (targetPrefix == Constants.GetFeatPrefix || target != vi) {
+            out.write("N" + vi + "\t" + targetPrefix + target + "\t1.0\n")
+            numEdges += 1
+            if (numEdges % 10000000 == 0)
+              logger.info("Edges generated: " + numEdges)
+          }
+          ei -= 1
+        }
+        vi += 1
+      }
+    } finally {
+      out.close
+    }
+    numEdges
+  }
+
+  private def newWriter (filename: String): Writer =
+    new BufferedWriter(new OutputStreamWriter(new FileOutputStream(filename), "UTF-8"), 1 << 20)
+
+  // Draws nodes with probability proportional to their weights, among
+  // all nodes or among the nodes of a label, by binary search over the
+  // cumulative weights.
+  private class TargetSampler (labels: Array[Int], weights: Array[Double], numLabels: Int) {
+
+    private val all = cumulative(Array.range(0, labels.length))
+
+    private val byLabel = {
+      val ids = Array.fill(numLabels)(new scala.collection.mutable.ArrayBuilder.ofInt)
+      var vi = 0
+      while (vi < labels.length) {
+        ids(labels(vi)) += vi
+        vi += 1
+      }
+      ids.map(b => cumulative(b.result))
+    }
+
+    private def cumulative (ids: Array[Int]): (Array[Int], Array[Double]) = {
+      val cum = new Array[Double](ids.length)
+      var sum = 0.0
+      var i = 0
+      while (i < ids.length) {
+        sum += weights(ids(i))
+        cum(i) = sum
+        i += 1
+      }
+      (ids, cum)
+    }
+
+    def sample (rand: Random): Int = sample(all, rand)
+
+    // a label without nodes falls back to all nodes
+    def sample (label: Int, rand: Random): Int =
+      if (byLabel(label)._1.length > 0) sample(byLabel(label), rand) else sample(all, rand)
+
+    private def sample (pool: (Array[Int], Array[Double]), rand: Random): Int = {
+      val (ids, cum) = pool
+      val x = rand.nextDouble * cum(cum.length - 1)
+      var lo = 0
+      var hi = cum.length - 1
+      while (lo < hi) {
+        val mid = (lo + hi) >>> 1
+        if (cum(mid) <= x) lo = mid + 1 else hi = mid
+      }
+      ids(lo)
+    }
+  }
+
+  def main (args: Array[String]) =
+    apply(ConfigReader.read_config(args))
+
+}
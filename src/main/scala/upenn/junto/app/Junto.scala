@@ -18,14 +18,22 @@ package upenn.junto.app
 
 import java.util.{ArrayList,Hashtable}
 import gnu.trove.map.hash.TObjectDoubleHashMap
+import scala.concurrent.Await
+import scala.concurrent.duration.Duration
 import upenn.junto.algorithm._
 import upenn.junto.config._
+import upenn.junto.eval.LabelStateEvaluator
 import upenn.junto.graph._
 import upenn.junto.util._
 import com.typesafe.scalalogging.log4j.Logging
 
 /**
  * Run Junto as an API call. To construct a graph, use upenn.junto.config.GraphBuilder.
+ *
+ * The apply methods copy the estimated labels into the vertices of the
+ * graph. run leaves the graph as it is, and returns the labels in a
+ * LabelState instead, so several runs can share one graph, including
+ * at the same time.
  */
 object JuntoRunner extends Logging {
 
@@ -42,43 +50,66 @@ object JuntoRunner extends Logging {
   def apply (algo: String, graph: Graph, maxIters: Int, 
              mu1: Double, mu2: Double, mu3: Double,
              keepTopKLabels: Int, useBipartiteOptimization: Boolean,
-             verbose: Boolean, resultList: ArrayList[Map[String,Double]]) {
+             verbose: Boolean, resultList: ArrayList[Map[String,Double]],
+             options: PropagationOptions = PropagationOptions()) {
+    run(algo, graph, maxIters, mu1, mu2, mu3, keepTopKLabels,
+        useBipartiteOptimization, verbose, resultList, options).writeBack
+  }
 
-    // Change this to true to try the (still preliminary) actor implementation.
-    val useActors = false
-    if (useActors) {
+  def run (algo: String, graph: Graph, maxIters: Int,
+           mu1: Double, mu2: Double, mu3: Double,
+           keepTopKLabels: Int, useBipartiteOptimization: Boolean,
+           verbose: Boolean, resultList: ArrayList[Map[String,Double]],
+           options: PropagationOptions = PropagationOptions()): LabelState = {
+
+    val labels = if (options.engine == "actors") {
+      if (algo != "mad")
+        throw new RuntimeException("The actor engine only runs mad, not " + algo)
+      if (useBipartiteOptimization || options.useActiveSet ||
+          options.updateMode != "jacobi" || options.checkpointFile != null)
+        logger.warn("The actor engine ignores use_bipartite_optimization, use_active_set, " +
+                    "update_mode and checkpoints")
       logger.info("Using actor-based MAD...\n")
-      MadGraphRunner(graph, mu1, mu2, mu3, maxIters)
 
-    } else {
+      val labels = Await.result(
+        MadGraphRunner(graph, mu1, mu2, mu3, maxIters, keepTopKLabels, options), Duration.Inf)
+      val eval = new LabelStateEvaluator(labels).Evaluate
+      resultList.add(Map(Constants.GetMRRString -> eval.testMRR,
+                         Constants.GetPrecisionString -> eval.accuracy))
+      labels
+
+    } else if (options.engine == "local") {
 
       val propagator = algo match {
         
         case "adsorption" =>
           logger.info("Using " + algo + " ...\n")
-        new OriginalAdsorption(graph, keepTopKLabels, mu1, mu2, mu3)
+        new OriginalAdsorption(graph, keepTopKLabels, mu1, mu2, mu3, options)
         
         case "mad" =>
           logger.info("Using " + algo + " ...\n")
-        new ModifiedAdsorption(graph, keepTopKLabels, mu1, mu2, mu3)
+        new ModifiedAdsorption(graph, keepTopKLabels, mu1, mu2, mu3, options)
         
         case "lp_zgl" =>
           logger.info("Using Label Propagation (ZGL) ...\n")
-        new LpZgl(graph, mu2, keepTopKLabels)
+        new LpZgl(graph, mu2, keepTopKLabels, options)
         
         case _ => throw new RuntimeException("Unknown algorithm: " + algo)
       }
       
       propagator.run(maxIters, useBipartiteOptimization, verbose, resultList)
-      
-      if (resultList.size > 0) {
-        val res = resultList.get(resultList.size - 1)
-        logger.info(Constants.GetPrecisionString + " " + res(Constants.GetPrecisionString))
-        logger.info(Constants.GetMRRString + " " + res(Constants.GetMRRString))
-      }
+      propagator.labels
 
+    } else {
+      throw new RuntimeException("Unknown engine: " + options.engine)
     }
-
+      
+    if (resultList.size > 0) {
+      val res = resultList.get(resultList.size - 1)
+      logger.info(Constants.GetPrecisionString + " " + res(Constants.GetPrecisionString))
+      logger.info(Constants.GetMRRString + " " + res(Constants.GetMRRString))
+    }
+    labels
   }
 
 }
@@ -89,13 +120,19 @@ object JuntoRunner extends Logging {
 object JuntoConfigRunner extends Logging {
 
   def apply (config: Hashtable[String,String], 
-             resultList: ArrayList[Map[String, Double]]) = {
+             resultList: ArrayList[Map[String, Double]]) {
 
     // pretty print the configs
     logger.info(CollectionUtil.Map2StringPrettyPrint(config))
 		
     // load the graph
-    val graph = GraphConfigLoader(config)
+    apply(config, resultList, GraphConfigLoader(config))
+  }
+
+  // Run on a graph already loaded for the config, which is left as it
+  // is, e.g. a graph shared by several runs (see ConfigTuner).
+  def apply (config: Hashtable[String,String],
+             resultList: ArrayList[Map[String, Double]], graph: Graph) {
 
     val maxIters = Integer.parseInt(config.get("iters"))
 
@@ -118,13 +155,28 @@ object JuntoConfigRunner extends Logging {
     // decide on the algorithm to use
     val algo = Defaults.GetValueOrDefault(config.get("algo"), "adsorption")
 
-    JuntoRunner(algo, graph, maxIters, mu1, mu2, mu3, keepTopKLabels,
-                useBipartiteOptimization, verbose, resultList)
+    // execution options, e.g. the number of worker threads (num_threads)
+    val options = PropagationOptions(config)
+    logger.info("Using num_threads value: " + options.numThreads)
+
+    val labels = JuntoRunner.run(algo, graph, maxIters, mu1, mu2, mu3, keepTopKLabels,
+                                 useBipartiteOptimization, verbose, resultList, options)
 		
-    if (config.containsKey("output_file") && (config.get("output_file")).length > 0)
-      GraphIo.saveEstimatedScores(graph, config.get("output_file"))
-    else if (config.containsKey("output_base") && (config.get("output_base")).length > 0)
-      GraphIo.saveEstimatedScores(graph, config.get("output_base") + ".mu2_" + mu2 + ".mu3_" + mu3)
+    val outputFile =
+      if (config.containsKey("output_file") && (config.get("output_file")).length > 0)
+        config.get("output_file")
+      else if (config.containsKey("output_base") && (config.get("output_base")).length > 0)
+        config.get("output_base") + ".mu2_" + mu2 + ".mu3_" + mu3
+      else
+        null
+
+    if (outputFile != null) {
+      // gzip by default when the file name asks for it
+      val gzip = Defaults.GetValueOrDefault(config.get("output_gzip"), outputFile.endsWith(".gz"))
+      val outputTopKLabels =
+        Defaults.GetValueOrDefault(config.get("output_top_k_labels"), Integer.MAX_VALUE)
+      GraphIo.saveEstimatedScores(labels, outputFile, options.numThreads, gzip, outputTopKLabels)
+    }
 
   }
 
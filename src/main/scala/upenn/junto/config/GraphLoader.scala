@@ -25,7 +25,55 @@ import com.typesafe.scalalogging.log4j.Logging
 
 object GraphConfigLoader extends Logging {
 
+  // config keys which decide what graph is built, and hence whether a
+  // graph snapshot can be used in place of building it
+  val GraphKeys = List("graph_file", "seed_file", "test_file", "gold_labels_file",
+                       "max_seeds_per_class", "beta", "is_directed",
+                       "set_gaussian_kernel_weights", "gauss_sigma_factor",
+                       "top_k_neighbors", "prune_threshold")
+
+  // input files, which may be comma separated lists of files
+  val FileKeys = List("graph_file", "seed_file", "test_file", "gold_labels_file")
+
+  def graphKey (config: Hashtable[String, String]): String =
+    GraphKeys.map(k => k + "=" + config.get(k)).mkString("\n")
+
+  // The key a snapshot is stored under: graphKey plus the length and
+  // modification time of every input file, so that a snapshot is not
+  // used once its inputs are rewritten under the same names.
+  def snapshotKey (config: Hashtable[String, String]): String = {
+    val files = for {
+      k <- FileKeys
+      if config.get(k) != null
+      filename <- config.get(k).split(",")
+    } yield {
+      val file = new java.io.File(filename)
+      filename + ":" + file.length + ":" + file.lastModified
+    }
+    (graphKey(config) :: files).mkString("\n")
+  }
+
+  // Build the graph described by the config, or, if graph_snapshot
+  // names an existing snapshot of that graph, read it from there. A
+  // snapshot is written after building if graph_snapshot is given.
   def apply (config: Hashtable[String, String]): Graph = {
+    val snapshot = config.get("graph_snapshot")
+    if (snapshot != null && new java.io.File(snapshot).exists) {
+      val graph = GraphSnapshot.read(snapshot, snapshotKey(config))
+      if (graph != null) {
+        logger.info(GraphStats.PrintStats(graph))
+        return graph
+      }
+      logger.info("Graph snapshot " + snapshot + " is out of date, rebuilding it")
+    }
+
+    val graph = build(config)
+    if (snapshot != null)
+      GraphSnapshot.write(graph, snapshot, snapshotKey(config))
+    graph
+  }
+
+  private def build (config: Hashtable[String, String]): Graph = {
 		
     logger.info("Going to build graph ...")
 
@@ -37,14 +85,27 @@ object GraphConfigLoader extends Logging {
     val beta = Defaults.GetValueOrDefault(config.get("beta"), 2.0)
     val isDirected = Defaults.GetValueOrDefault(config.get("is_directed"), false)
 
+    // the files are parsed by this many threads
+    val numThreads = Defaults.GetValueOrDefault(config.get("num_threads"), 1)
+
+    // add the edges to the graph as they are read
+    val graph = new Graph
     val edgeFilelist = Defaults.GetValueOrDie(config, "graph_file")
-    val edges = (edgeFilelist split(",") map (EdgeFileReader(_)) toList) flatten
+    var cnt = 0
+    TripleFileReader.readAll(edgeFilelist, numThreads)(new TripleHandler {
+      def apply (source: String, target: String, weight: Double) {
+        cnt += 1
+        if (cnt % 1000000 == 0)
+          logger.info("Edges Processed: " + cnt)
+        GraphBuilder.addEdge(graph, source, target, weight, isDirected)
+      }
+    })
 
     val seedFilelist = Defaults.GetValueOrDie(config, "seed_file")
-    val seeds = (seedFilelist split(",") map (LabelFileReader(_)) toList) flatten
+    val seeds = readLabels(seedFilelist, numThreads)
 
     val testLabels = {
-      if (config.containsKey("test_file")) LabelFileReader(config.get("test_file"))
+      if (config.containsKey("test_file")) readLabels(config.get("test_file"), numThreads)
       else List[Label]()
     }
 
@@ -56,10 +117,10 @@ object GraphConfigLoader extends Logging {
     val maxNeighbors = Defaults.GetValueOrDefault(config.get("top_k_neighbors"), Integer.MAX_VALUE)
 
 		
-    val graph = GraphBuilder(edges, seeds, testLabels,
-                             beta, maxNeighbors, maxSeedsPerClass,
-                             setGaussianWeights, sigmaFactor,
-                             config.get("prune_threshold"), isDirected)
+    GraphBuilder.finish(graph, seeds, testLabels,
+                        beta, maxNeighbors, maxSeedsPerClass,
+                        setGaussianWeights, sigmaFactor,
+                        config.get("prune_threshold"), numThreads)
 
     // gold labels for some or all of the nodes 
     if (config.containsKey("gold_labels_file"))
@@ -76,6 +137,16 @@ object GraphConfigLoader extends Logging {
     graph
   }
 
+  private def readLabels (filelist: String, numThreads: Int): List[Label] = {
+    val labels = new scala.collection.mutable.ListBuffer[Label]
+    TripleFileReader.readAll(filelist, numThreads)(new TripleHandler {
+      def apply (vertex: String, label: String, score: Double) {
+        labels += new Label(vertex, label, score)
+      }
+    })
+    labels.toList
+  }
+
 }
 
 
@@ -106,17 +177,33 @@ object GraphBuilder extends Logging {
       if (cnt % 1000000 == 0)
     	logger.info("Edges Processed: " + cnt);
 
+      addEdge(graph, edge.source, edge.target, edge.weight, isDirected)
+    }
 
-      // source -> target
-      val dv = graph.AddVertex(edge.source, Constants.GetDummyLabel)
-      dv.setNeighbor(edge.target, edge.weight)
+    finish(graph, seeds, testLabels, beta, maxNeighbors, maxSeedsPerClass,
+           setGaussianWeights, sigmaFactor, pruneThreshold)
+  }
+
+  def addEdge (graph: Graph, source: String, target: String, weight: Double,
+               isDirected: Boolean) {
+    // source -> target
+    val dv = graph.AddVertex(source, Constants.GetDummyLabel)
+    dv.setNeighbor(target, weight)
       
-      // target -> source
-      if (!isDirected) {
-        val fv = graph.AddVertex(edge.target, Constants.GetDummyLabel)
-        fv.setNeighbor(edge.source, edge.weight)
-      }
+    // target -> source
+    if (!isDirected) {
+      val fv = graph.AddVertex(target, Constants.GetDummyLabel)
+      fv.setNeighbor(source, weight)
     }
+  }
+
+  // Inject the seed and test labels into a graph the edges of which
+  // have been added, and apply the requested edge transformations, the
+  // per-vertex passes of which run on numThreads workers.
+  def finish (graph: Graph, seeds: TraversableOnce[Label], testLabels: TraversableOnce[Label],
+              beta: Double, maxNeighbors: Int, maxSeedsPerClass: Int,
+              setGaussianWeights: Boolean, sigmaFactor: Double,
+              pruneThreshold: String, numThreads: Int = 1): Graph = {
 
     // Inject seed labels
     if (seeds.nonEmpty) {
@@ -147,7 +234,7 @@ object GraphBuilder extends Logging {
       // calculate random walk probabilities.
       // random walk probability computation depends on the seed label information,
       // and hence this can be done only after the seed labels have been injected.
-      graph.CalculateRandomWalkProbabilities(beta)
+      graph.CalculateRandomWalkProbabilities(beta, numThreads)
     }
 
     // Mark all test nodes, which will be used during evaluation.
@@ -163,13 +250,17 @@ object GraphBuilder extends Logging {
     // set Gaussian Kernel weights, if requested. In this case, we assume that existing
     // edge weights are distance squared i.e. || x_i - x_j ||^2  
     if (setGaussianWeights)
-      graph.SetGaussianWeights(sigmaFactor)
+      graph.SetGaussianWeights(sigmaFactor, numThreads)
 
-    graph.KeepTopKNeighbors(maxNeighbors)
+    graph.KeepTopKNeighbors(maxNeighbors, numThreads)
 
     if (pruneThreshold != null) 
       graph.PruneLowDegreeNodes(pruneThreshold.toInt)
 
+    // the structure is final at this point, so build the CSR form
+    // that the propagation algorithms iterate over.
+    graph.freeze
+
     graph
   }
   
@@ -0,0 +1,228 @@
+package upenn.junto.config
+
+import java.io.{File, RandomAccessFile}
+import java.nio.ByteBuffer
+import java.nio.charset.Charset
+import java.util.concurrent.{Callable, ExecutionException, Executors, Future, ThreadFactory}
+import scala.collection.mutable.Queue
+
+/**
+ * Receives the lines of a file of tab separated triples, e.g.
+ * source, target and weight of an edge, or vertex, label and score of
+ * a seed label.
+ */
+trait TripleHandler {
+  def apply (first: String, second: String, value: Double): Unit
+}
+
+/**
+ * Streaming reader for files of tab separated triples, as used for
+ * edge, seed and test label files. The file is split into byte ranges
+ * which are parsed in parallel by numThreads workers, directly from the
+ * bytes (no regex or split), while the calling thread hands the parsed
+ * lines to the handler, in file order. Only a bounded number of ranges
+ * is in flight at any time, so memory use does not grow with the size
+ * of the file.
+ *
+ * Lines are trimmed, blank lines are skipped, and any other line must
+ * consist of exactly three tab separated fields, the last a number.
+ */
+object TripleFileReader {
+
+  // size of the byte range parsed by a worker at a time
+  val RangeSize = 16 * 1024 * 1024
+
+  private val Utf8 = Charset.forName("UTF-8")
+
+  def apply (filename: String, numThreads: Int, handler: TripleHandler) {
+    val length = new File(filename).length
+    val numRanges = ((length + RangeSize - 1) / RangeSize).toInt
+
+    val executor = Executors.newFixedThreadPool(math.max(1, numThreads), new ThreadFactory {
+      def newThread (r: Runnable) = {
+        val t = new Thread(r, "triple-reader")
+        t.setDaemon(true)
+        t
+      }
+    })
+
+    try {
+      // keep the workers busy while the current range is handed out
+      val window = 2 * math.max(1, numThreads)
+      val inFlight = new Queue[Future[ParsedRange]]
+      var next = 0
+      while (next < numRanges || inFlight.nonEmpty) {
+        while (next < numRanges && inFlight.size < window) {
+          val start = next.toLong * RangeSize
+          val end = math.min(length, start + RangeSize)
+          inFlight.enqueue(executor.submit(new Callable[ParsedRange] {
+            def call = parse(filename, start, end, length)
+          }))
+          next += 1
+        }
+
+        val parsed =
+          try {
+            inFlight.dequeue.get
+          } catch {
+            case e: ExecutionException => throw e.getCause
+          }
+        var i = 0
+        while (i < parsed.size) {
+          handler(parsed.first(i), parsed.second(i), parsed.values(i))
+          i += 1
+        }
+      }
+    } finally {
+      executor.shutdownNow
+    }
+  }
+
+  // Reads all the files of a comma separated list, one after the other.
+  def readAll (filelist: String, numThreads: Int)(handler: TripleHandler) {
+    filelist split(",") foreach { filename => apply(filename, numThreads, handler) }
+  }
+
+  private class ParsedRange (val first: Array[String], val second: Array[String],
+                             val values: Array[Double], val size: Int)
+
+  // Parse the lines which start in [start, end) of the file. A line that
+  // starts in the range is read to its end, even past the range.
+  private def parse (filename: String, start: Long, end: Long, length: Long): ParsedRange = {
+    val file = new RandomAccessFile(filename, "r")
+    try {
+      val channel = file.getChannel
+
+      // read the range, plus what is needed to finish its last line
+      var buf = new Array[Byte]((end - start).toInt)
+      readFully(channel, start, buf, 0, buf.length)
+      var size = buf.length
+      var pos = end
+      while (pos < length && (size == 0 || buf(size - 1) != '\n')) {
+        val extra = new Array[Byte](64 * 1024)
+        val n = math.min(extra.length.toLong, length - pos).toInt
+        readFully(channel, pos, extra, 0, n)
+        var nl = 0
+        while (nl < n && extra(nl) != '\n') nl += 1
+        val take = if (nl < n) nl + 1 else n
+        val grown = new Array[Byte](size + take)
+        System.arraycopy(buf, 0, grown, 0, size)
+        System.arraycopy(extra, 0, grown, size, take)
+        buf = grown
+        size += take
+        pos += take
+      }
+
+      // skip the line which started in the previous range
+      var i = 0
+      if (start > 0) {
+        val prev = new Array[Byte](1)
+        readFully(channel, start - 1, prev, 0, 1)
+        if (prev(0) != '\n') {
+          while (i < size && buf(i) != '\n') i += 1
+          i += 1
+        }
+      }
+
+      var lines = 0
+      var j = i
+      while (j < size) {
+        if (buf(j) == '\n') lines += 1
+        j += 1
+      }
+      lines += 1
+
+      val first = new Array[String](lines)
+      val second = new Array[String](lines)
+      val values = new Array[Double](lines)
+      var count = 0
+      while (i < size) {
+        var lineEnd = i
+        while (lineEnd < size && buf(lineEnd) != '\n') lineEnd += 1
+
+        // trim, as String.trim does
+        var s = i
+        var e = lineEnd
+        while (s < e && (buf(s) & 0xff) <= ' ') s += 1
+        while (e > s && (buf(e - 1) & 0xff) <= ' ') e -= 1
+
+        if (s < e) {
+          val tab1 = indexOf(buf, '\t', s, e)
+          val tab2 = if (tab1 < 0) -1 else indexOf(buf, '\t', tab1 + 1, e)
+          if (tab2 < 0 || indexOf(buf, '\t', tab2 + 1, e) >= 0)
+            throw new RuntimeException("Invalid entry in " + filename + ": " +
+                                       new String(buf, s, e - s, Utf8))
+          first(count) = new String(buf, s, tab1 - s, Utf8)
+          second(count) = new String(buf, tab1 + 1, tab2 - tab1 - 1, Utf8)
+          values(count) = parseDouble(buf, tab2 + 1, e)
+          count += 1
+        }
+        i = lineEnd + 1
+      }
+      new ParsedRange(first, second, values, count)
+    } finally {
+      file.close
+    }
+  }
+
+  private def readFully (channel: java.nio.channels.FileChannel, position: Long,
+                         buf: Array[Byte], offset: Int, length: Int) {
+    val bb = ByteBuffer.wrap(buf, offset, length)
+    var pos = position
+    while (bb.hasRemaining) {
+      val n = channel.read(bb, pos)
+      if (n < 0)
+        throw new RuntimeException("Unexpected end of file")
+      pos += n
+    }
+  }
+
+  private def indexOf (buf: Array[Byte], b: Char, from: Int, to: Int): Int = {
+    var i = from
+    while (i < to && buf(i) != b) i += 1
+    if (i < to) i else -1
+  }
+
+  private val Pow10 = Array.iterate(1.0, 23)(_ * 10)
+
+  // Parses a plain decimal number ([-+]digits[.digits]) with at most 15
+  // significant digits directly; as both the digits and the power of ten
+  // are exact doubles, the quotient is correctly rounded, i.e. the same
+  // value Double.parseDouble gives. Anything else (exponents, long
+  // mantissas, NaN, ...) goes through Double.parseDouble.
+  private def parseDouble (buf: Array[Byte], from: Int, to: Int): Double = {
+    var i = from
+    val negative = i < to && buf(i) == '-'
+    if (i < to && (buf(i) == '-' || buf(i) == '+')) i += 1
+
+    var mantissa = 0L
+    var anyDigit = false
+    var digits = 0
+    var fraction = 0
+    var seenDot = false
+    var simple = i < to
+    while (simple && i < to) {
+      val c = buf(i)
+      if (c >= '0' && c <= '9') {
+        anyDigit = true
+        if (mantissa != 0 || c != '0') digits += 1
+        mantissa = mantissa * 10 + (c - '0')
+        if (seenDot) fraction += 1
+        simple = digits <= 15 && fraction < Pow10.length
+      } else if (c == '.' && !seenDot) {
+        seenDot = true
+      } else {
+        simple = false
+      }
+      i += 1
+    }
+
+    if (simple && anyDigit) {
+      val value = mantissa / Pow10(fraction)
+      if (negative) -value else value
+    } else {
+      java.lang.Double.parseDouble(new String(buf, from, to - from, Utf8))
+    }
+  }
+
+}
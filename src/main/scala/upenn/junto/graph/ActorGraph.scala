@@ -1,130 +1,172 @@
 package upenn.junto.graph
 
 import akka.actor._
-import scala.collection.JavaConversions._
-
-import gnu.trove.map.hash.TObjectDoubleHashMap
+import scala.concurrent.{Future, Promise}
 
 import upenn.junto.algorithm._
-import upenn.junto.util.Constants
+import upenn.junto.util.{LabelAlphabet, LabelStore, ProbUtil, RunMetrics}
+import com.typesafe.scalalogging.log4j.Logging
 
 
 /**
- * An implementation of MAD using Akka actors. Still preliminary -- has some things
- * to add in yet, and round out, but the core algorithm is working properly. There
- * are many things that can surely be improved, especially to reducing the amount
- * of blocking employed here.
+ * An implementation of MAD using Akka actors, selected with
+ * "engine = actors" in the config.
+ *
+ * The vertices are split into num_shards contiguous ranges of CSR ids,
+ * and each range is owned by a shard actor which holds the label
+ * distributions of its vertices, and copies of those of their
+ * neighbors in other shards (ghosts), in primitive LabelStores. In each
+ * iteration, every shard sends each shard which has ghosts of its
+ * vertices a single message with their current distributions, packed
+ * into arrays, and once it has the messages of all the shards it
+ * depends on, it computes the new distributions of its vertices and
+ * reports back to the controller. The updates are those of
+ * ModifiedAdsorption, done in the same order, so the results are the
+ * same as with the default engine, whatever the number of shards.
  *
  * @author Jason Baldridge
  */
-object MadGraphRunner {
+object MadGraphRunner extends Logging {
 
   sealed trait MadMessage
-  case object NextStep extends MadMessage
-  case object Stop extends MadMessage
-  case class SetNeighbors(neighbors: Map[ActorRef, Double]) extends MadMessage
-  case object PushLabels extends MadMessage
-  case class DoneUpdating(delta: Double, mrr: Double) extends MadMessage
-  case class Advance(worker: ActorRef) extends MadMessage
-
-  case class NeighborInfo(
-    neighbor: ActorRef, 
-    nPcontinue: Double, 
-    nWeightOfRecipent: Double,
-    labelDist: Map[String, Double]
-  )
+  case class Peers(shards: IndexedSeq[ActorRef]) extends MadMessage
+  case class NextStep(iter: Int) extends MadMessage
+  case class DoneUpdating(shard: Int, iter: Int, delta: Double, histogram: Array[Long])
+  extends MadMessage
+  case object Collect extends MadMessage
+  case class Collected(shard: Int) extends MadMessage
+
+  // The current distributions of the vertices a shard exports to
+  // another, in the order of its ghosts: the entries of the i-th vertex
+  // are at [offsets(i), offsets(i + 1)) of labels and scores.
+  case class BoundaryLabels(
+    shard: Int,
+    offsets: Array[Int],
+    labels: Array[Int],
+    scores: Array[Double]
+  ) extends MadMessage
 
   /**
-   * Entry point into actor-based MAD: create the actors for the graph and its
-   * vertices and start the work.
+   * Entry point into actor-based MAD: create the shards of the graph and
+   * run maxIters iterations. The returned future completes with the
+   * LabelState of the run, which holds the estimated distributions; the
+   * graph is only read.
    */
-  def apply (graph: Graph, mu1: Double, mu2: Double, mu3: Double, maxIters: Int) {
+  def apply (graph: Graph, mu1: Double, mu2: Double, mu3: Double, maxIters: Int,
+             keepTopKLabels: Int = Integer.MAX_VALUE,
+             options: PropagationOptions = PropagationOptions()): Future[LabelState] = {
+
+    val mad = new ModifiedAdsorption(graph, keepTopKLabels, mu1, mu2, mu3, options)
+    val labels = LabelState.initial(graph, keepTopKLabels, false)
+    val numShards = math.max(1, math.min(options.numShards, labels.numVertices))
+    logger.info("Using " + numShards + " shards")
+    val plans = ShardPlan(labels, numShards, mad.computeEdgeCoefficients(graph.csr),
+                          mad.normalizationConstants, mu1, mu3, keepTopKLabels)
+
+    val done = Promise[LabelState]()
     val system = ActorSystem("MadRunner")
-    val clock = system.actorOf(Props(new Clock(maxIters)), name="clock")
-    val madGraph = system.actorOf(Props(new MadGraph(clock, graph, mu1, mu2, mu3)), name="graph")
-    madGraph ! NextStep
+    system.actorOf(Props(new MadGraph(labels, plans, maxIters, options, done)), name="graph")
+    done.future
   }
 
   /**
-   * An actor that controls the entire graph. Stores all the vertex actors
-   * and dispatches work for them to do, and communicates with the Clock to
-   * keep each iteration of work separate.
+   * An actor that controls the entire graph: it creates the shards, and
+   * starts each iteration once all of them are done with the previous
+   * one. After the last one, it has the shards copy their distributions
+   * into the LabelState of the run and completes the future with it.
    */
-  class MadGraph (clock: ActorRef, graph: Graph, mu1: Double, mu2: Double, mu3: Double) 
+  class MadGraph (labels: LabelState, plans: Array[ShardPlan], maxIters: Int,
+                  options: PropagationOptions, done: Promise[LabelState])
   extends Actor {
 
-    val normalizationConstants = 
-      MadHelper.computeNormalizationConstants(graph, mu1, mu2, mu3)
-
-    AdsorptionHelper.prepareGraph(graph)
-
-    val namesToActorVertices: Map[String, ActorRef] = 
-      graph
-        .vertices
-        .values
-        .toIndexedSeq
-        .zipWithIndex
-        .map { case(v, index) => {
-          v.SetInjectedLabelScore(Constants.GetDummyLabel, 0.0)
-          val vertexActorRef = context.actorOf(
-            Props(new MadVertex(self, v.name, v.pinject, v.pcontinue, v.pabandon,
-                          mu1, mu2, mu3, v.neighbors.size,
-                          normalizationConstants.get(v.name),
-                          TroveToScalaMap(v.injectedLabels), 
-                          TroveToScalaMap(v.estimatedLabels),
-                          v.isTestNode, 
-                          TroveToScalaMap(v.goldLabels))), name = "vertex"+index)
-          (v.name, vertexActorRef)
-        }}
-        .toMap
-
-    namesToActorVertices.foreach {
-      case(vName, vertexActorRef) => {
-        val neighborsAsStrings = graph.vertices.get(vName).neighbors
-        val neighborsAsActorRefs = neighborsAsStrings.keySet.map {
-          neighName => (namesToActorVertices(neighName) -> neighborsAsStrings.get(neighName))
-        } toMap
-
-        vertexActorRef ! SetNeighbors(neighborsAsActorRefs)
+    // a failed shard fails the run
+    override val supervisorStrategy = OneForOneStrategy() {
+      case e: Exception =>
+        fail(e)
+        SupervisorStrategy.Stop
+    }
+
+    // created in preStart, so that failing to create them fails the run
+    var shards: IndexedSeq[ActorRef] = _
+    var metrics: RunMetrics = _
+    val numEdges = labels.csr.numEdges.toLong
+
+    val deltas = new Array[Double](plans.length)
+    val histogram = RunMetrics.NewHistogram
+    var numBusyShards = 0
+    var iter = 0
+
+    override def preStart () {
+      guarded {
+        shards = plans.map(plan => context.actorOf(Props(new MadShard(self, plan, labels)),
+                                                   name = "shard" + plan.index))
+        shards.foreach(shard => shard ! Peers(shards))
+        metrics = options.newMetrics("MadGraphRunner")
+        if (maxIters > 0) nextStep else collect
       }
     }
-    
-    val vertices = namesToActorVertices.values.toIndexedSeq
-    val numTestNodes = graph.vertices.values.count(_.isTestNode).toDouble
 
-    var numBusyVertices: Int = _
-    var totalDeltaLabelDiff = 0.0
-    var correctNodeCount = 0.0
+    // A failure of the controller fails the run: left to its supervisor,
+    // it would be restarted over shards part way through the run, and
+    // the future would never complete.
+    def guarded (body: => Unit) {
+      try {
+        body
+      } catch {
+        case e: Exception => fail(e)
+      }
+    }
+
+    def fail (e: Exception) {
+      if (done.tryFailure(e)) {
+        context.system.shutdown
+        // the run has failed already, whether or not this works
+        if (metrics != null)
+          try metrics.close catch { case _: Exception => }
+      }
+    }
+
+    def nextStep () {
+      iter += 1
+      numBusyShards = shards.length
+      java.util.Arrays.fill(histogram, 0L)
+      metrics.startIteration(iter)
+      metrics.startPhase(RunMetrics.COMPUTE)
+      shards.foreach(shard => shard ! NextStep(iter))
+    }
+
+    def collect () {
+      numBusyShards = shards.length
+      shards.foreach(shard => shard ! Collect)
+    }
 
     def receive = {
 
-      // Broadcast to all the vertices that they should push their
-      // labels to their neighbors
-      case NextStep =>
-        numBusyVertices = vertices.length
-        vertices.foreach(vertex => vertex ! PushLabels)
-
-      // Receive a message from a vertex about the results of its
-      // updating its previous iteration estimated label distribution
-      // to the new one.
-      case DoneUpdating(delta, mrr) => {
-        numBusyVertices -= 1
-        totalDeltaLabelDiff += delta
-        correctNodeCount += (if (mrr==1.0) 1.0 else 0.0)
-
-        if (numBusyVertices == 0) {
-          println("Delta: " + totalDeltaLabelDiff)
-          println("Acc: " + correctNodeCount/numTestNodes)
-          totalDeltaLabelDiff = 0.0
-          correctNodeCount = 0.0
-          clock ! Advance(self)
+      case DoneUpdating(shard, _, delta, shardHistogram) => guarded {
+        numBusyShards -= 1
+        deltas(shard) = delta
+        for (b <- 0 until histogram.length)
+          histogram(b) += shardHistogram(b)
+
+        if (numBusyShards == 0) {
+          val deltaPerNode = deltas.sum / labels.numVertices
+          logger.info("after_iteration " + iter + " label_diff_per_node: " + deltaPerNode)
+          metrics.endIteration(numEdges, labels.numVertices, labels.numVertices,
+                               deltaPerNode, histogram)
+
+          if (iter < maxIters) nextStep else collect
         }
       }
 
-      // Tell all the vertices to stop and then stop itself.
-      case Stop => 
-        vertices.foreach(vertex => vertex ! PoisonPill)
-        context.system.shutdown
+      // once every shard has copied its rows, the run is over
+      case Collected(_) => guarded {
+        numBusyShards -= 1
+        if (numBusyShards == 0) {
+          metrics.close
+          context.system.shutdown
+          done.success(labels)
+        }
+      }
 
     }
 
@@ -132,161 +174,284 @@ object MadGraphRunner {
 
 
   /**
-   * An actor for a vertex. Knows how to send its fellow vertices the information
-   * they need to perform MAD updates, and -- of course -- what to do with the
-   * information it receives from fellow vertices.
+   * An actor owning the vertices [plan.lo, plan.hi) of the graph.
    */
-  class MadVertex (
-    controller: ActorRef,
-    name: String, pinject: Double, pcontinue: Double, pabandon: Double,
-    mu1: Double, mu2: Double, mu3: Double, numNeighbors: Int,
-    miiNormalization: Double,
-    injectedLabels: Map[String, Double],
-    var estimatedLabels: Map[String, Double],
-    isTestNode: Boolean,
-    goldLabels: Map[String, Double]
-  ) extends Actor {
+  class MadShard (controller: ActorRef, plan: ShardPlan, labels: LabelState) extends Actor {
 
-    import upenn.junto.util._
-    import java.util.ArrayList
+    var shards: IndexedSeq[ActorRef] = _
 
-    var neighbors: Map[ActorRef, Double] = _
-    val newLabelDist = new collection.mutable.HashMap[String, Double]
+    // distributions of the own vertices, double buffered, and of the ghosts
+    var current = plan.estimated
+    var next = current.createEmpty
+    val ghosts = LabelStore.Create(plan.numGhosts, labels.numLabels, plan.keepTopKLabels)
 
-    var numNeighborMessagesReceived = 0
+    val acc = labels.newAccumulator
+    val scratch = labels.newAccumulator
+    val histogram = RunMetrics.NewHistogram
+
+    var iter = 0
+    var stepped = false
+    var numReceived = 0
 
     def receive = {
 
-      // Set the neighbors of this node, as a map from ActorRefs for
-      // the neighbors to their weights.
-      case SetNeighbors (neighborActorRefs) => 
-        neighbors = neighborActorRefs
-
-      // Push the label distribution and relevant other factors so
-      // that one's neighbors can compute their updates.
-      case PushLabels =>
-        for (neighRef <- neighbors.keySet)
-          neighRef ! NeighborInfo(self, pcontinue, neighbors(neighRef), estimatedLabels)
-
-      // Receive a message from a neighbor and perform the relevant computation.
-      case NeighborInfo(neighbor: ActorRef, nPcontinue, nWeightOfRecipient, nLabelDist) => {
-        val mult = pcontinue * neighbors(neighbor) + nPcontinue * nWeightOfRecipient
-        DistUtil.addScores(newLabelDist, mult*mu2, nLabelDist)
-
-	numNeighborMessagesReceived += 1
-
-	// When all neighbors have reported their distributions, wrap
-	// up the update and report back to the controller.
-	if (numNeighborMessagesReceived == numNeighbors) {
-	  val (deltaLabelDiff, mrr) = updateEstimatedLabels
-          numNeighborMessagesReceived = 0
-	  controller ! DoneUpdating(deltaLabelDiff, mrr)	  
-	}
+      case Peers(peers) =>
+        shards = peers
+
+      // send the boundary distributions of the current iteration
+      case NextStep(nextIter) => {
+        iter = nextIter
+        for (i <- 0 until plan.exportShards.length)
+          shards(plan.exportShards(i)) ! pack(plan.exportRows(i))
+        stepped = true
+        updateIfReady
       }
-        
-    }
 
-    // Once all labels have been pushed, finalizes the update, which
-    // involves vertex-internal computations with the injected
-    // labels and the prior distribution (the dummy distribution).
-    def updateEstimatedLabels = {
+      // the ghosts of an iteration only arrive once every shard is done
+      // with the previous one, so they can be overwritten right away
+      case BoundaryLabels(shard, offsets, labelIds, scores) => {
+        var slot = plan.importStarts(shard)
+        var i = 0
+        while (i + 1 < offsets.length) {
+          acc.clear
+          var j = offsets(i)
+          while (j < offsets(i + 1)) {
+            acc.add(labelIds(j), scores(j))
+            j += 1
+          }
+          ghosts.set(slot, acc)
+          slot += 1
+          i += 1
+        }
+        numReceived += 1
+        updateIfReady
+      }
 
-      // Add in the injected label contribution
-      DistUtil.addScores(newLabelDist, pinject*mu1, injectedLabels)
+      // copy the final distributions into the rows of the run
+      case Collect => {
+        for (i <- 0 until plan.numOwned)
+          labels.estimated.copyRow(plan.lo + i, current, i)
+        controller ! Collected(plan.index)
+      }
 
-      // Add in the dummy label contribution
-      DistUtil.addScores(newLabelDist, pabandon*mu3, DistUtil.DummyLabelDist)
+    }
 
-      // Normalize by M_ii
-      newLabelDist.foreach { 
-        case(k,v) => newLabelDist += (k -> v/miiNormalization)
+    def pack (rows: Array[Int]): BoundaryLabels = {
+      val offsets = new Array[Int](rows.length + 1)
+      for (i <- 0 until rows.length)
+        offsets(i + 1) = offsets(i) + current.count(rows(i))
+      val labelIds = new Array[Int](offsets(rows.length))
+      val scores = new Array[Double](offsets(rows.length))
+      var j = 0
+      for (row <- rows) {
+        var i = 0
+        while (i < current.size(row)) {
+          if (current.scoreAt(row, i) != 0) {
+            labelIds(j) = current.labelAt(row, i)
+            scores(j) = current.scoreAt(row, i)
+            j += 1
+          }
+          i += 1
+        }
       }
+      BoundaryLabels(plan.index, offsets, labelIds, scores)
+    }
 
-      // Calculate the delta from the previous estimated label distribution
-      val deltaLabelDiff = 
-        DistUtil.getDifferenceNorm2Squared(estimatedLabels, 1.0, newLabelDist, 1.0)
+    def updateIfReady () {
+      if (stepped && numReceived == plan.numImports) {
+        stepped = false
+        numReceived = 0
+        val delta = update
+        controller ! DoneUpdating(plan.index, iter, delta, histogram.clone)
+      }
+    }
 
-      // Swap in the new distribution and clear newLabelDist for the next round
-      estimatedLabels = newLabelDist.toMap
-      newLabelDist.clear
+    // the MAD update of every own vertex (see Adsorption.computeNewDist),
+    // returning the sum of the label deltas
+    def update (): Double = {
+      var delta = 0.0
+      java.util.Arrays.fill(histogram, 0L)
+      var i = 0
+      while (i < plan.numOwned) {
+        acc.clear
+        var ei = plan.offsets(i)
+        while (ei < plan.offsets(i + 1)) {
+          val target = plan.targets(ei)
+          if (target >= 0)
+            ProbUtil.AddScores(acc, plan.coefficients(ei), current, target)
+          else
+            ProbUtil.AddScores(acc, plan.coefficients(ei), ghosts, -target - 1)
+          ei += 1
+        }
+        ProbUtil.AddScores(acc, plan.injectionWeights(i), plan.injected, i)
+        ProbUtil.AddScore(acc, plan.dummyWeights(i), LabelAlphabet.DUMMY_LABEL)
+        if (plan.keepTopKLabels < Integer.MAX_VALUE)
+          ProbUtil.KeepTopScoringKeys(acc, plan.keepTopKLabels)
+        ProbUtil.DivScores(acc, plan.normalizationConstants(i))
+
+        delta += ProbUtil.GetDifferenceNorm2Squarred(current, i, 1.0, acc, 1.0, scratch)
+        next.set(i, acc)
+        histogram(RunMetrics.Bucket(next.count(i))) += 1
+        i += 1
+      }
 
+      val previous = current
+      current = next
+      next = previous
+      delta
+    }
 
-      val mrr =
-        if (isTestNode) {
-          val sortedMap: List[(String,Double)] = 
-            estimatedLabels.toList.sortBy(_._2).reverse.filter(_._1 != Constants.GetDummyLabel)
+  }
+
+}
 
-          val goldRank = sortedMap.indexWhere(pair => goldLabels.containsKey(pair._1))
 
-          if (goldRank > -1) 1.0/(goldRank + 1.0) else 0.0
-        } else {
-          0.0
-        }
-      (deltaLabelDiff,mrr)
+/**
+ * What a shard needs to update the vertices [lo, hi): their edges, in
+ * shard-local terms, the MAD weights of their updates, their injected
+ * and initial estimated distributions, and which distributions it
+ * exchanges with the other shards.
+ *
+ * The ghosts of a shard are the vertices of other shards adjacent to
+ * its own, in id order; as shards own contiguous ranges of ids, those
+ * of each other shard form a contiguous run of ghost slots, starting at
+ * importStarts(shard). An edge target t >= 0 is the own vertex lo + t,
+ * and t < 0 the ghost in slot -t - 1. exportRows(i) lists the own
+ * vertices (as lo-relative rows) which are ghosts of shard
+ * exportShards(i), in its ghost order.
+ */
+class ShardPlan (
+  val index: Int,
+  val lo: Int,
+  val hi: Int,
+  val offsets: Array[Int],
+  val targets: Array[Int],
+  val coefficients: Array[Double],
+  val injectionWeights: Array[Double],
+  val dummyWeights: Array[Double],
+  val normalizationConstants: Array[Double],
+  val keepTopKLabels: Int,
+  val injected: LabelStore,
+  val estimated: LabelStore,
+  val numGhosts: Int,
+  val importStarts: Array[Int],
+  val numImports: Int
+) {
+
+  def numOwned = hi - lo
+
+  var exportShards = new Array[Int](0)
+  var exportRows = new Array[Array[Int]](0)
+
+}
+
+object ShardPlan {
+
+  // Split the vertices of labels into numShards ranges of about the same
+  // number of edges, and plan each.
+  def apply (labels: LabelState, numShards: Int, edgeCoefficients: Array[Double],
+             normalizationConstants: Array[Double], mu1: Double, mu3: Double,
+             keepTopKLabels: Int): Array[ShardPlan] = {
+    val csr = labels.csr
+    val n = csr.numVertices
+
+    val bounds = new Array[Int](numShards + 1)
+    bounds(numShards) = n
+    var vi = 0
+    for (s <- 1 until numShards) {
+      val edgeTarget = csr.numEdges.toLong * s / numShards
+      while (vi < n && csr.offsets(vi) < edgeTarget)
+        vi += 1
+      // no shard is left empty
+      bounds(s) = math.max(bounds(s - 1) + 1, math.min(vi, n - (numShards - s)))
     }
 
+    // per vertex scratch, reused by every shard
+    val slots = Array.fill(n)(-1)
 
-  }
+    val plans = for (s <- 0 until numShards) yield {
+      val lo = bounds(s)
+      val hi = bounds(s + 1)
 
-  /**
-   * A time keeper that makes sure that each iteration is distinct from the next, by
-   * ensuring that the graph controller (MadGraph actor) doesn't broadcast the next
-   * label pushing event until all vertices are done updating.
-   */
-  class Clock (maxSteps: Int) extends Actor {
-    var currentStep = 0
+      // the ghosts, in id order
+      val ghostBuilder = new scala.collection.mutable.ArrayBuilder.ofInt
+      for (ei <- csr.offsets(lo) until csr.offsets(hi)) {
+        val t = csr.targets(ei)
+        if ((t < lo || t >= hi) && slots(t) == -1) {
+          slots(t) = 0
+          ghostBuilder += t
+        }
+      }
+      val ghostIds = ghostBuilder.result
+      java.util.Arrays.sort(ghostIds)
+      for (g <- 0 until ghostIds.length)
+        slots(ghostIds(g)) = g
+
+      val offsets = new Array[Int](hi - lo + 1)
+      val targets = new Array[Int](csr.offsets(hi) - csr.offsets(lo))
+      val coefficients = new Array[Double](targets.length)
+      for (i <- 0 until hi - lo) {
+        offsets(i + 1) = csr.offsets(lo + i + 1) - csr.offsets(lo)
+        for (ei <- csr.offsets(lo + i) until csr.offsets(lo + i + 1)) {
+          val t = csr.targets(ei)
+          val local = ei - csr.offsets(lo)
+          targets(local) = if (t >= lo && t < hi) t - lo else -slots(t) - 1
+          coefficients(local) = edgeCoefficients(ei)
+        }
+      }
 
-    def receive = {
-      case Advance(worker) =>
-        currentStep += 1
-        println("Step: " + currentStep)
-        if (currentStep == maxSteps) {
-          worker ! Stop
-          context.stop(self)
-        } else {
-          worker ! NextStep
+      val importStarts = Array.fill(numShards)(-1)
+      var numImports = 0
+      for (g <- 0 until ghostIds.length) {
+        val owner = ownerOf(bounds, ghostIds(g))
+        if (importStarts(owner) == -1) {
+          importStarts(owner) = g
+          numImports += 1
         }
-    }
+        slots(ghostIds(g)) = -1
+      }
 
-  }
+      var maxInjected = 0
+      for (vi <- lo until hi)
+        maxInjected = math.max(maxInjected, labels.injected.count(vi))
+      val injected = LabelStore.Create(hi - lo, labels.numLabels, maxInjected)
+      val estimated = LabelStore.Create(hi - lo, labels.numLabels, keepTopKLabels)
+      for (i <- 0 until hi - lo) {
+        injected.copyRow(i, labels.injected, lo + i)
+        estimated.copyRow(i, labels.estimated, lo + i)
+      }
 
-}
+      val plan = new ShardPlan(
+        s, lo, hi, offsets, targets, coefficients,
+        Array.tabulate(hi - lo)(i => csr.vertices(lo + i).pinject * mu1),
+        Array.tabulate(hi - lo)(i => csr.vertices(lo + i).pabandon * mu3),
+        java.util.Arrays.copyOfRange(normalizationConstants, lo, hi),
+        keepTopKLabels, injected, estimated, ghostIds.length, importStarts, numImports)
+      (plan, ghostIds)
+    }
 
-/**
- * Converts a Trove map to a Scala map.
- */
-object TroveToScalaMap {
-  def apply[T] (tmap: TObjectDoubleHashMap[T]): Map[T,Double] =
-    tmap.keySet.map(key => (key -> tmap.get(key))).toMap
-}
+    // each shard exports to another the rows of its ghosts there
+    for ((plan, _) <- plans) {
+      val exports =
+        for ((other, ghostIds) <- plans
+             if other.importStarts(plan.index) >= 0)
+        yield (other.index,
+               ghostIds.filter(t => t >= plan.lo && t < plan.hi).map(_ - plan.lo))
+      plan.exportShards = exports.map(_._1).toArray
+      plan.exportRows = exports.map(_._2).toArray
+    }
 
-/**
- * Utilities for working with probability distributions stored
- * as Map[String, Double] objects.
- */
-object DistUtil {
-
-  val DummyLabelDist = Map(Constants.GetDummyLabel -> 1.0)
-
-  def addScores (accumulator: collection.mutable.Map[String, Double],
-                 multiplier: Double,
-                 addDist: Map[String,Double]) {
-    addDist.mapValues(_*multiplier).foreach {
-      case(k,v) => 
-        val updatedValue = v + accumulator.getOrElse(k, 0.0)
-        accumulator += (k -> updatedValue)
-    } 
+    plans.map(_._1).toArray
   }
 
-
-  def getDifferenceNorm2Squared(
-    m1: Map[String, Double],
-    m1Mult: Double, 
-    m2: collection.mutable.Map[String, Double], 
-    m2Mult: Double
-  ) = {
-    val differences = (m1.keys ++ m2.keys).map(k => m1.getOrElse(k, 0.0) - m2.getOrElse(k, 0.0))
-    math.sqrt(differences.map(x => x*x).sum)
+  private def ownerOf (bounds: Array[Int], vi: Int): Int = {
+    var lo = 0
+    var hi = bounds.length - 2
+    while (lo < hi) {
+      val mid = (lo + hi + 1) >>> 1
+      if (bounds(mid) <= vi) lo = mid else hi = mid - 1
+    }
+    lo
   }
 
 }
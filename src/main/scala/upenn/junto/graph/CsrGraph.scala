@@ -0,0 +1,102 @@
+package upenn.junto.graph
+
+import gnu.trove.map.hash.TObjectIntHashMap
+import scala.collection.JavaConversions._
+
+/**
+ * A frozen, compressed-sparse-row (CSR) view of a Graph. Every vertex
+ * is given an integer id, and the out-edges of vertex i are stored
+ * in positions offsets(i) until offsets(i+1) of the targets and
+ * weights arrays. For each edge i -> j, reverseWeights holds the
+ * weight of the edge j -> i (0.0 if there is no such edge), so that
+ * the propagation loops never need to hash a vertex name.
+ *
+ * Vertex ids follow the iteration order of Graph.vertices, and the
+ * edges of a vertex follow the order of Vertex.GetNeighborNames, so
+ * walking the CSR visits vertices and edges in exactly the same order
+ * as walking the hash maps did.
+ */
+class CsrGraph private (
+  val vertices: Array[Vertex],
+  val offsets: Array[Int],
+  val targets: Array[Int],
+  val weights: Array[Double],
+  val reverseWeights: Array[Double],
+  index: TObjectIntHashMap[String]
+) {
+
+  def numVertices = vertices.length
+
+  def numEdges = targets.length
+
+  def degree (vi: Int) = offsets(vi + 1) - offsets(vi)
+
+  def name (vi: Int) = vertices(vi).name
+
+  // returns -1 if the vertex is not present in the graph
+  def indexOf (name: String): Int = index.get(name)
+
+}
+
+object CsrGraph {
+
+  def apply (graph: Graph): CsrGraph = {
+    val numVertices = graph.vertices.size
+
+    // assign integer ids to the vertices
+    val vertices = new Array[Vertex](numVertices)
+    val index = new TObjectIntHashMap[String](math.max(numVertices * 2, 10), 0.5f, -1)
+    var vi = 0
+    for (vName <- graph.vertices.keySet) {
+      vertices(vi) = graph.vertices.get(vName)
+      index.put(vName, vi)
+      vi += 1
+    }
+
+    // lay out the out-edges of each vertex contiguously
+    val offsets = new Array[Int](numVertices + 1)
+    vi = 0
+    while (vi < numVertices) {
+      offsets(vi + 1) = offsets(vi) + vertices(vi).neighbors.size
+      vi += 1
+    }
+
+    val numEdges = offsets(numVertices)
+    val targets = new Array[Int](numEdges)
+    val weights = new Array[Double](numEdges)
+    val reverseWeights = new Array[Double](numEdges)
+
+    vi = 0
+    while (vi < numVertices) {
+      val v = vertices(vi)
+      var ei = offsets(vi)
+      for (neighName <- v.GetNeighborNames) {
+        val ni = index.get(neighName)
+        if (ni < 0)
+          throw new RuntimeException("Edge " + v.name + " --> " + neighName +
+                                     " points to a vertex that is not in the graph")
+        targets(ei) = ni
+        weights(ei) = v.neighbors.get(neighName)
+        reverseWeights(ei) = vertices(ni).GetNeighborWeight(v.name)
+        ei += 1
+      }
+      vi += 1
+    }
+
+    new CsrGraph(vertices, offsets, targets, weights, reverseWeights, index)
+  }
+
+  // Wrap arrays which already hold a CSR layout, e.g. read back from a
+  // GraphSnapshot; the vertex ids are the positions in vertices.
+  def apply (vertices: Array[Vertex], offsets: Array[Int], targets: Array[Int],
+             weights: Array[Double], reverseWeights: Array[Double]): CsrGraph = {
+    val index = new TObjectIntHashMap[String](math.max(vertices.length * 2, 10), 0.5f, -1)
+    var vi = 0
+    while (vi < vertices.length) {
+      index.put(vertices(vi).name, vi)
+      vi += 1
+    }
+    new CsrGraph(vertices, offsets, targets, weights, reverseWeights, index)
+  }
+
+}
@@ -2,7 +2,8 @@ package upenn.junto.graph
 
 import gnu.trove.map.hash.TObjectDoubleHashMap
 import gnu.trove.iterator.TObjectDoubleIterator
-import java.util.{ArrayList,HashMap,Iterator}
+import java.util.{HashMap,Iterator}
+import upenn.junto.algorithm.VertexParallelizer
 import upenn.junto.util._
 import scala.collection.JavaConversions._
 import com.typesafe.scalalogging.log4j.Logging
@@ -13,6 +14,32 @@ class Graph extends Logging {
   val labels = new TObjectDoubleHashMap[String]
   var isSeedInjected = false
 
+  // frozen CSR form of the graph, built on demand (see freeze). It is
+  // dropped whenever one of the structural methods below modifies the
+  // graph; code that edits Vertex.neighbors directly must call freeze
+  // again afterwards.
+  @volatile private var frozen: CsrGraph = null
+
+  // (re)build the CSR form of the graph from the current vertices and edges
+  def freeze: CsrGraph = {
+    frozen = CsrGraph(this)
+    frozen
+  }
+
+  // The CSR form is the immutable topology which runs share (see
+  // LabelState): it is built once, even if several runs ask for it at
+  // the same time.
+  def csr: CsrGraph = {
+    val c = frozen
+    if (c != null) c else synchronized { if (frozen != null) frozen else freeze }
+  }
+
+  // use a CSR form built elsewhere (see GraphSnapshot); it must hold
+  // exactly the vertices and edges of this graph
+  private[graph] def install (c: CsrGraph) {
+    frozen = c
+  }
+
   def AddVertex (name: String, label: String): Vertex = AddVertex(name, label, 1.0)
 
   def AddVertex (name: String, label: String, weight: Double): Vertex = {
@@ -21,9 +48,10 @@ class Graph extends Logging {
     // Add if the vertex is already not preset. Or, if the vertex
     // is present but it doesn't have a valid label assigned, then
     // update its label
-    if (v == null)
+    if (v == null) {
       vertices.put(name, Vertex(name, label, weight))
-    else
+      frozen = null
+    } else
       v.setGoldLabel(label, weight)
 
     vertices.get(name)
@@ -39,6 +67,7 @@ class Graph extends Logging {
   // of neighbors.
   def PruneLowDegreeNodes (minNeighborCount: Int) {
     var totalPruned = 0
+    frozen = null
 
     val vIter: Iterator[String] = vertices.keySet.iterator
     while (vIter.hasNext) {
@@ -63,84 +92,120 @@ class Graph extends Logging {
     logger.info("Total nodes pruned: " + totalPruned)
   }
 	
-  // keep only K highest scoring neighbors
-  def KeepTopKNeighbors (kValue: Int) {
+  // keep only K highest scoring neighbors (see Vertex.KeepTopKNeighbors),
+  // then add the reverse of every kept edge which lost it, so that the
+  // edges are undirected again. The vertices are pruned, and the missing
+  // reverse edges found, by numThreads workers; the reverse edges are
+  // then added in vertex order, as a single thread would add them.
+  def KeepTopKNeighbors (kValue: Int, numThreads: Int = 1) {
+    frozen = null
+    val vs = vertexArray
+    val kept = new Array[Int](vs.length)
+    foreachVertex(vs, numThreads) { vi =>
+      vs(vi).KeepTopKNeighbors(kValue)
+      kept(vi) = vs(vi).neighbors.size
+    }
+
     var totalEdges = 0
-    for (vName <- vertices.keySet) {
-      val v = vertices.get(vName)
-			
-      val neighWeights: TObjectDoubleHashMap[String] = new TObjectDoubleHashMap[String]
-      for (neighName <-  v.GetNeighborNames)
-        neighWeights.put(neighName, v.GetNeighborWeight(neighName))
-
-      // now sort the neighbors
-      val sortedNeighList: ArrayList[ObjectDoublePair] = 
-        CollectionUtil.ReverseSortMap(neighWeights)
-			
-      // Since the array is reverse sorted, the highest scoring
-      // neighbors are listed first, which we want to retain. Hence,
-      // remove everything after after the top-K neighbors.
-      for (neighLabelScore <- sortedNeighList.drop(kValue))
-        v.neighbors.remove(neighLabelScore.GetLabel)
-
-      totalEdges += v.neighbors.keySet.size
+    for (count <- kept)
+      totalEdges += count
+
+    // now make all the directed edges undirected. Whether the reverse of
+    // an edge is missing only depends on the pruned graph: adding the
+    // reverse edges never removes one.
+    val missing = new Array[Array[Vertex]](vs.length)
+    foreachVertex(vs, numThreads) { vi =>
+      missing(vi) = missingReverseEdges(vs(vi))
     }
-		
-    // now make all the directed edges undirected.
-    for (vName <- vertices.keySet) {
-      val v = vertices.get(vName)
 
-      for (neighName <-  v.GetNeighborNames) {
-        val neigh = vertices.get(neighName)
-				
-        // if the reverse edge is not present, then add it
-        if (neigh.GetNeighborWeight(v.name) == 0.0) {
-          neigh.setNeighbor(v.name, v.GetNeighborWeight(neighName))
+    var vi = 0
+    while (vi < vs.length) {
+      val v = vs(vi)
+      if (missing(vi) != null) {
+        for (neigh <- missing(vi)) {
+          neigh.setNeighbor(v.name, v.GetNeighborWeight(neigh.name))
           totalEdges += 1
         }
       }
+      vi += 1
     }
 		
     logger.info("Total edges: " + totalEdges)
   }
+
+  // the neighbors of v (in neighbors order) which have no edge back to
+  // v, or null if there are none
+  private def missingReverseEdges (v: Vertex): Array[Vertex] = {
+    var count = 0
+    var nIter = v.neighbors.iterator
+    while (nIter.hasNext) {
+      nIter.advance
+      if (vertices.get(nIter.key).GetNeighborWeight(v.name) == 0.0)
+        count += 1
+    }
+    if (count == 0)
+      return null
+
+    val neighs = new Array[Vertex](count)
+    count = 0
+    nIter = v.neighbors.iterator
+    while (nIter.hasNext) {
+      nIter.advance
+      val neigh = vertices.get(nIter.key)
+      if (neigh.GetNeighborWeight(v.name) == 0.0) {
+        neighs(count) = neigh
+        count += 1
+      }
+    }
+    neighs
+  }
 	
 
-  def SetGaussianWeights (sigmaFactor: Double) {
+  def SetGaussianWeights (sigmaFactor: Double, numThreads: Int = 1) {
+    val vs = vertexArray
+
     // get the average edge weight of the graph
-    val avgEdgeWeight = GetAverageEdgeWeightSqrt
+    val avgEdgeWeight = GetAverageEdgeWeightSqrt(vs, numThreads)
+    val sigmaSquarred = math.pow(sigmaFactor * avgEdgeWeight, 2)
+    frozen = null
 		
-    for (vName <- vertices.keySet) {
-      val v = vertices.get(vName)
-
-      val nIter: TObjectDoubleIterator[String] = v.neighbors.iterator
+    foreachVertex(vs, numThreads) { vi =>
+      val nIter: TObjectDoubleIterator[String] = vs(vi).neighbors.iterator
       while (nIter.hasNext) {
         nIter.advance
-        val nName = nIter.key
 
         // we assume that the currently set distances are distance squares
         val currWeight = nIter.value
-        val sigmaSquarred = math.pow(sigmaFactor * avgEdgeWeight, 2)
-        val newWeight = math.exp((-1.0 * currWeight) / (2 * sigmaSquarred))
-        v.neighbors.put(nName, newWeight)
+        nIter.setValue(math.exp((-1.0 * currWeight) / (2 * sigmaSquarred)))
       }
     }
   }
 	
-  private def GetAverageEdgeWeightSqrt: Double = {
-    var totalEdges = 0
-    var totalDistance = 0.0
-
-    for (vName <- vertices.keySet) {
-      val v = vertices.get(vName)
-      val nIter: TObjectDoubleIterator[String] = v.neighbors.iterator
+  // The distances are summed per vertex by numThreads workers, and the
+  // vertex sums then added up in vertex order, so that the average does
+  // not depend on the number of threads.
+  private def GetAverageEdgeWeightSqrt (vs: Array[Vertex], numThreads: Int): Double = {
+    val distances = new Array[Double](vs.length)
+    foreachVertex(vs, numThreads) { vi =>
+      var distance = 0.0
+      val nIter: TObjectDoubleIterator[String] = vs(vi).neighbors.iterator
       while (nIter.hasNext) {
         nIter.advance
-        totalEdges += 1
 
         // we assume that the currently set distances are distance squares,
         // so we need to take sqrt before averaging.
-        totalDistance += math.sqrt(v.GetNeighborWeight(nIter.key))
-      }	
+        distance += math.sqrt(nIter.value)
+      }
+      distances(vi) = distance
+    }
+
+    var totalEdges = 0
+    var totalDistance = 0.0
+    var vi = 0
+    while (vi < vs.length) {
+      totalEdges += vs(vi).neighbors.size
+      totalDistance += distances(vi)
+      vi += 1
     }
 
     totalDistance/totalEdges
@@ -161,50 +226,65 @@ class Graph extends Logging {
 	
   // calculate the random walk probabilities i.e. injection, continuation and
   // termination probabilities for each node
-  def CalculateRandomWalkProbabilities (beta: Double) {
-    var totalZeroEntropyNeighborhoodNodes = 0
+  def CalculateRandomWalkProbabilities (beta: Double, numThreads: Int = 1) {
+    val vs = vertexArray
+    val isZeroEntropy = new Array[Boolean](vs.length)
+    foreachVertex(vs, numThreads) { vi =>
+      isZeroEntropy(vi) = vs(vi).CalculateRWProbabilities(beta)
+    }
 
-    for (vName <- vertices.keySet) {
-      val isZeroEntropy = GetVertex(vName).CalculateRWProbabilities(beta)
-      if (isZeroEntropy)
+    var totalZeroEntropyNeighborhoodNodes = 0
+    for (zero <- isZeroEntropy)
+      if (zero)
         totalZeroEntropyNeighborhoodNodes += 1
-    }
     logger.info("ZERO ENTROPY NEIGHBORHOOD Heuristic adjustment used for " +
                          totalZeroEntropyNeighborhoodNodes + " nodes!")
   }
+
+  // the vertices, in the order of vertices
+  private def vertexArray: Array[Vertex] =
+    vertices.values.toArray(new Array[Vertex](0))
+
+  // Run body over the positions of vs with numThreads workers (see
+  // VertexParallelizer): it may only modify the vertex it is given.
+  private def foreachVertex (vs: Array[Vertex], numThreads: Int)(body: Int => Unit) {
+    val par = new VertexParallelizer(numThreads)
+    try {
+      par.foreach(vs.length)(body)
+    } finally {
+      par.shutdown
+    }
+  }
 	
 }
 
 object GraphIo extends Logging {
-  import java.io.{BufferedWriter,FileWriter}
   
   val kDelim_ = "\t" 
 
   def saveEstimatedScores (graph: Graph, outputFile: String) {
-    var doc_mrr_sum = 0.0
-    var correct_doc_cnt = 0
-    var total_doc_cnt = 0
-
-    val bw = new BufferedWriter(new FileWriter(outputFile))
-
-    for (vName <- graph.vertices.keySet) {
-      val v = graph.vertices.get(vName)
-      if (v.isTestNode) {
-        val mrr = v.GetMRR
-        total_doc_cnt += 1
-        doc_mrr_sum += mrr
-        if (mrr == 1.0)
-          correct_doc_cnt += 1
-      }
+    saveEstimatedScores(graph, outputFile, 1, false, Integer.MAX_VALUE)
+  }
 
-      bw.write(v.name + kDelim_ +
-               CollectionUtil.Map2String(v.goldLabels) + kDelim_ +
-               Vertex.getPrettyPrintMap(v.injectedLabels) + kDelim_ +
-               Vertex.getPrettyPrintMap(v.estimatedLabels) + kDelim_ +
-               v.isTestNode + kDelim_ +
-               v.GetMRR + "\n")
-    }
-    bw.close
+  // Write the scores with numThreads workers (see ScoreWriter), gzipped
+  // if requested, and with only the topKLabels highest scoring estimated
+  // labels of each vertex.
+  def saveEstimatedScores (graph: Graph, outputFile: String, numThreads: Int,
+                           gzip: Boolean, topKLabels: Int) {
+    logSummary(ScoreWriter.write(graph, outputFile, numThreads, gzip, topKLabels))
+  }
+
+  // The same for the estimated scores of a run, which need not be
+  // written back into the graph.
+  def saveEstimatedScores (labels: LabelState, outputFile: String, numThreads: Int,
+                           gzip: Boolean, topKLabels: Int) {
+    logSummary(ScoreWriter.write(labels, outputFile, numThreads, gzip, topKLabels))
+  }
+
+  private def logSummary (summary: ScoreWriter.Summary) {
+    val correct_doc_cnt = summary.correct
+    val total_doc_cnt = summary.total
+    val doc_mrr_sum = summary.mrrSum
     
     // print summary result
     // assert (total_doc_cnt > 0)
@@ -0,0 +1,354 @@
+package upenn.junto.graph
+
+import java.io.{File, IOException, RandomAccessFile}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.nio.channels.FileChannel
+import java.nio.charset.Charset
+import java.nio.file.{Files, StandardCopyOption}
+import gnu.trove.map.hash.TObjectDoubleHashMap
+import upenn.junto.util.LabelAlphabet
+import com.typesafe.scalalogging.log4j.Logging
+
+/**
+ * Binary snapshot of a fully prepared graph (seeds injected, random
+ * walk probabilities computed, edges pruned and reweighted), so that
+ * later runs on the same data can skip parsing and preparing it. The
+ * snapshot stores the CSR layout of the graph, and reading it installs
+ * that layout as is, so a run from a snapshot visits vertices and edges
+ * in the same order as the run which wrote it.
+ *
+ * Layout (big endian):
+ *
+ *   header:   magic, version, key, isSeedInjected
+ *   labels:   count, then the label strings, addressed by position below
+ *   vertices: count, then per vertex its name, flags (seed, test,
+ *             normalized transitions), pinject, pcontinue, pabandon,
+ *             and its injected, gold and estimated (label id, score)
+ *             lists
+ *   edges:    count, then the offsets, targets, weights and
+ *             reverseWeights arrays of the CsrGraph
+ *
+ * Strings are written as their length in bytes followed by their UTF-8
+ * bytes. The key is an arbitrary description of the inputs the graph
+ * was built from; read returns null if it does not match the one given,
+ * or if the snapshot has another version, so that a stale snapshot is
+ * rebuilt rather than used.
+ *
+ * The file is read through memory mapped windows of at most 1GB, so
+ * snapshots larger than 2GB are supported.
+ */
+object GraphSnapshot extends Logging {
+
+  val Magic = 0x4a4e5347
+  val Version = 1
+
+  private val Seed = 1
+  private val Test = 2
+  private val Normalized = 4
+
+  private val Utf8 = Charset.forName("UTF-8")
+
+  def write (graph: Graph, filename: String, key: String) {
+    val csr = graph.csr
+    val n = csr.numVertices
+
+    val alphabet = new LabelAlphabet
+    var vi = 0
+    while (vi < n) {
+      val v = csr.vertices(vi)
+      for (m <- List(v.injectedLabels, v.goldLabels, v.estimatedLabels)) {
+        val iter = m.iterator
+        while (iter.hasNext) {
+          iter.advance
+          alphabet.addLabel(iter.key)
+        }
+      }
+      vi += 1
+    }
+
+    // write to a temporary file first, and move it over the previous
+    // snapshot in one step, so that a partly written one is never picked up
+    val file = new File(filename)
+    val tmp = new File(filename + ".tmp")
+    val out = new SnapshotWriter(tmp)
+    try {
+      out.putInt(Magic)
+      out.putInt(Version)
+      out.putString(key)
+      out.putInt(if (graph.isSeedInjected) 1 else 0)
+
+      out.putInt(alphabet.size)
+      var li = 0
+      while (li < alphabet.size) {
+        out.putString(alphabet.getLabel(li))
+        li += 1
+      }
+
+      out.putInt(n)
+      vi = 0
+      while (vi < n) {
+        val v = csr.vertices(vi)
+        out.putString(v.name)
+        out.putInt((if (v.isSeedNode) Seed else 0) | (if (v.isTestNode) Test else 0) |
+                   (if (v.isTransitionNormalized) Normalized else 0))
+        out.putDouble(v.pinject)
+        out.putDouble(v.pcontinue)
+        out.putDouble(v.pabandon)
+        putLabels(out, v.injectedLabels, alphabet)
+        putLabels(out, v.goldLabels, alphabet)
+        putLabels(out, v.estimatedLabels, alphabet)
+        vi += 1
+      }
+
+      out.putInt(csr.numEdges)
+      out.putInts(csr.offsets)
+      out.putInts(csr.targets)
+      out.putDoubles(csr.weights)
+      out.putDoubles(csr.reverseWeights)
+    } finally {
+      out.close
+    }
+
+    Files.move(tmp.toPath, file.toPath,
+               StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    logger.info("Graph snapshot written to " + filename + ": " +
+                n + " vertices, " + csr.numEdges + " edges")
+  }
+
+  // Returns null if the snapshot was written for a different key, or by
+  // another version of this format.
+  def read (filename: String, key: String): Graph = {
+    val in = new SnapshotReader(new File(filename))
+    try {
+      if (in.getInt != Magic)
+        throw new IOException(filename + " is not a graph snapshot")
+      // a snapshot of another version is stale as well; its key may not
+      // even be readable
+      if (in.getInt != Version || in.getString != key)
+        return null
+
+      val graph = new Graph
+      graph.isSeedInjected = in.getInt != 0
+
+      val labels = new Array[String](in.getInt)
+      var li = 0
+      while (li < labels.length) {
+        labels(li) = in.getString
+        li += 1
+      }
+
+      val n = in.getInt
+      val vertices = new Array[Vertex](n)
+      var vi = 0
+      while (vi < n) {
+        val v = new Vertex(in.getString)
+        val flags = in.getInt
+        v.isSeedNode = (flags & Seed) != 0
+        v.isTestNode = (flags & Test) != 0
+        v.isTransitionNormalized = (flags & Normalized) != 0
+        v.pinject = in.getDouble
+        v.pcontinue = in.getDouble
+        v.pabandon = in.getDouble
+        getLabels(in, v.injectedLabels, labels)
+        getLabels(in, v.goldLabels, labels)
+        v.estimatedLabels.clear
+        getLabels(in, v.estimatedLabels, labels)
+        vertices(vi) = v
+        graph.vertices.put(v.name, v)
+        vi += 1
+      }
+
+      val numEdges = in.getInt
+      val offsets = new Array[Int](n + 1)
+      val targets = new Array[Int](numEdges)
+      val weights = new Array[Double](numEdges)
+      val reverseWeights = new Array[Double](numEdges)
+      in.getInts(offsets)
+      in.getInts(targets)
+      in.getDoubles(weights)
+      in.getDoubles(reverseWeights)
+
+      vi = 0
+      while (vi < n) {
+        val v = vertices(vi)
+        var ei = offsets(vi)
+        while (ei < offsets(vi + 1)) {
+          v.setNeighbor(vertices(targets(ei)).name, weights(ei))
+          ei += 1
+        }
+        vi += 1
+      }
+
+      graph.install(CsrGraph(vertices, offsets, targets, weights, reverseWeights))
+      logger.info("Graph snapshot read from " + filename + ": " +
+                  n + " vertices, " + numEdges + " edges")
+      graph
+    } finally {
+      in.close
+    }
+  }
+
+  private def putLabels (out: SnapshotWriter, m: TObjectDoubleHashMap[String],
+                         alphabet: LabelAlphabet) {
+    out.putInt(m.size)
+    val iter = m.iterator
+    while (iter.hasNext) {
+      iter.advance
+      out.putInt(alphabet.getLabelId(iter.key))
+      out.putDouble(iter.value)
+    }
+  }
+
+  private def getLabels (in: SnapshotReader, m: TObjectDoubleHashMap[String],
+                         labels: Array[String]) {
+    var i = in.getInt
+    while (i > 0) {
+      m.put(labels(in.getInt), in.getDouble)
+      i -= 1
+    }
+  }
+
+  // Buffered writer over a file channel.
+  private class SnapshotWriter (file: File) {
+    private val raf = new RandomAccessFile(file, "rw")
+    raf.setLength(0)
+    private val channel = raf.getChannel
+    private val buf = ByteBuffer.allocateDirect(1 << 20)
+
+    private def ensure (bytes: Int) {
+      if (buf.remaining < bytes)
+        flush
+    }
+
+    private def flush () {
+      buf.flip
+      while (buf.hasRemaining)
+        channel.write(buf)
+      buf.clear
+    }
+
+    def putInt (value: Int) {
+      ensure(4)
+      buf.putInt(value)
+    }
+
+    def putDouble (value: Double) {
+      ensure(8)
+      buf.putDouble(value)
+    }
+
+    def putString (s: String) {
+      val bytes = s.getBytes(Utf8)
+      putInt(bytes.length)
+      var pos = 0
+      while (pos < bytes.length) {
+        ensure(1)
+        val len = math.min(buf.remaining, bytes.length - pos)
+        buf.put(bytes, pos, len)
+        pos += len
+      }
+    }
+
+    def putInts (values: Array[Int]) {
+      var i = 0
+      while (i < values.length) {
+        putInt(values(i))
+        i += 1
+      }
+    }
+
+    def putDoubles (values: Array[Double]) {
+      var i = 0
+      while (i < values.length) {
+        putDouble(values(i))
+        i += 1
+      }
+    }
+
+    def close () {
+      try {
+        flush
+      } finally {
+        raf.close
+      }
+    }
+  }
+
+  // Reader over memory mapped windows of the file; a window is mapped
+  // from the current position whenever the next value does not fit in
+  // the current one.
+  private class SnapshotReader (file: File) {
+    private val WindowSize = 1 << 30
+
+    private val raf = new RandomAccessFile(file, "r")
+    private val channel = raf.getChannel
+    private val length = channel.size
+    private var base = 0L
+    private var buf: MappedByteBuffer = map(0L)
+
+    private def map (position: Long): MappedByteBuffer = {
+      base = position
+      channel.map(FileChannel.MapMode.READ_ONLY, position,
+                  math.min(WindowSize.toLong, length - position))
+    }
+
+    private def ensure (bytes: Int) {
+      if (buf.remaining < bytes) {
+        val position = base + buf.position
+        if (length - position < bytes)
+          throw new IOException("Truncated graph snapshot " + file)
+        buf = map(position)
+      }
+    }
+
+    def getInt: Int = {
+      ensure(4)
+      buf.getInt
+    }
+
+    def getDouble: Double = {
+      ensure(8)
+      buf.getDouble
+    }
+
+    def getString: String = {
+      val bytes = new Array[Byte](getInt)
+      var pos = 0
+      while (pos < bytes.length) {
+        ensure(1)
+        val len = math.min(buf.remaining, bytes.length - pos)
+        buf.get(bytes, pos, len)
+        pos += len
+      }
+      new String(bytes, Utf8)
+    }
+
+    // bulk reads, a window at a time
+    def getInts (values: Array[Int]) {
+      var pos = 0
+      while (pos < values.length) {
+        ensure(4)
+        val len = math.min(buf.remaining / 4, values.length - pos)
+        buf.asIntBuffer.get(values, pos, len)
+        buf.position(buf.position + 4 * len)
+        pos += len
+      }
+    }
+
+    def getDoubles (values: Array[Double]) {
+      var pos = 0
+      while (pos < values.length) {
+        ensure(8)
+        val len = math.min(buf.remaining / 8, values.length - pos)
+        buf.asDoubleBuffer.get(values, pos, len)
+        buf.position(buf.position + 8 * len)
+        pos += len
+      }
+    }
+
+    def close () {
+      raf.close
+    }
+  }
+
+}
@@ -0,0 +1,188 @@
+package upenn.junto.graph
+
+import upenn.junto.util.Constants
+import upenn.junto.util.LabelAccumulator
+import upenn.junto.util.LabelAlphabet
+import upenn.junto.util.LabelStore
+import gnu.trove.map.hash.TObjectDoubleHashMap
+
+/**
+ * The label distributions of the vertices of a CsrGraph held in
+ * primitive LabelStores, one row per CSR vertex id, with labels
+ * addressed through a LabelAlphabet. The propagation algorithms read
+ * and write these stores instead of the per-vertex hash maps. Each run
+ * owns a LabelState of its own (see LabelState.initial), and only
+ * reads the graph, so that any number of runs can share one graph, at
+ * the same time or one after another. The estimated distributions can
+ * be copied back into the vertices with writeBack, or written out
+ * straight from here (see GraphIo.saveEstimatedScores).
+ *
+ * Entries with a zero score are treated as absent, so writeBack does
+ * not copy them into the vertices.
+ */
+class LabelState (
+  val csr: CsrGraph,
+  val alphabet: LabelAlphabet,
+  val injected: LabelStore,
+  val gold: LabelStore,
+  var estimated: LabelStore
+) {
+
+  def numVertices = csr.numVertices
+
+  def numLabels = alphabet.size
+
+  // scratch distribution sized for this label set
+  def newAccumulator = new LabelAccumulator(numLabels)
+
+  // The estimated scores are double buffered: an iteration writes the
+  // new scores of every vertex into nextEstimated, while reading the
+  // current ones from estimated, and then calls swapEstimated. The
+  // second buffer is allocated once, on first use, and reused after.
+  private var spare: LabelStore = null
+
+  def nextEstimated: LabelStore = {
+    if (spare == null)
+      spare = estimated.createEmpty
+    spare
+  }
+
+  def swapEstimated () {
+    val current = estimated
+    estimated = nextEstimated
+    spare = current
+  }
+
+  def toMap (store: LabelStore, row: Int): TObjectDoubleHashMap[String] = {
+    val m = new TObjectDoubleHashMap[String]
+    var i = 0
+    while (i < store.size(row)) {
+      val score = store.scoreAt(row, i)
+      if (score != 0)
+        m.put(alphabet.getLabel(store.labelAt(row, i)), score)
+      i += 1
+    }
+    m
+  }
+
+  def toMap (acc: LabelAccumulator): TObjectDoubleHashMap[String] = {
+    val m = new TObjectDoubleHashMap[String]
+    var i = 0
+    while (i < acc.size) {
+      m.put(alphabet.getLabel(acc.labelAt(i)), acc.scoreAt(i))
+      i += 1
+    }
+    m
+  }
+
+  // copy the estimated distributions back into the vertices, which
+  // must not be in use by other runs
+  def writeBack () {
+    var vi = 0
+    while (vi < numVertices) {
+      csr.vertices(vi).SetEstimatedLabelScores(toMap(estimated, vi))
+      vi += 1
+    }
+  }
+
+}
+
+object LabelState {
+
+  // The starting point of a propagation over the graph, which leaves the
+  // graph as it is: the dummy label is dropped from the injected and the
+  // estimated labels, the estimated labels of a seed are its injected
+  // labels, and with normalize, the injected labels and the estimated
+  // labels of the other vertices are normalized (see ProbUtil.Normalize).
+  // The labels are numbered, and the rows filled, in the iteration order
+  // of the label maps of vertices so modified.
+  def initial (graph: Graph, keepTopKLabels: Int, normalize: Boolean): LabelState = {
+    val csr = graph.csr
+    val numVertices = csr.numVertices
+    val dummy = Constants.GetDummyLabel
+
+    val alphabet = new LabelAlphabet
+    var maxInjected = 0
+    var maxGold = 0
+    var vi = 0
+    while (vi < numVertices) {
+      val v = csr.vertices(vi)
+      addLabels(v.injectedLabels, dummy, alphabet)
+      addLabels(v.goldLabels, null, alphabet)
+      // the labels of a seed are numbered already
+      if (!v.isSeedNode)
+        addLabels(v.estimatedLabels, dummy, alphabet)
+      val numInjected =
+        v.injectedLabels.size - (if (v.injectedLabels.containsKey(dummy)) 1 else 0)
+      maxInjected = math.max(maxInjected, numInjected)
+      maxGold = math.max(maxGold, v.goldLabels.size)
+      vi += 1
+    }
+
+    val numLabels = alphabet.size
+    val injected = LabelStore.Create(numVertices, numLabels, maxInjected)
+    val gold = LabelStore.Create(numVertices, numLabels, maxGold)
+    val estimated = LabelStore.Create(numVertices, numLabels, keepTopKLabels)
+
+    val acc = new LabelAccumulator(numLabels)
+    vi = 0
+    while (vi < numVertices) {
+      val v = csr.vertices(vi)
+      val injectedSum = if (normalize) sum(v.injectedLabels, dummy) else 0.0
+      load(v.injectedLabels, dummy, injectedSum, alphabet, acc)
+      injected.set(vi, acc)
+      load(v.goldLabels, null, 0.0, alphabet, acc)
+      gold.set(vi, acc)
+      if (v.isSeedNode) {
+        // the injected labels, in the order of a copy of them
+        load(new TObjectDoubleHashMap[String](v.injectedLabels), dummy, injectedSum,
+             alphabet, acc)
+      } else {
+        val estimatedSum = if (normalize) sum(v.estimatedLabels, dummy) else 0.0
+        load(v.estimatedLabels, dummy, estimatedSum, alphabet, acc)
+      }
+      estimated.set(vi, acc)
+      vi += 1
+    }
+
+    new LabelState(csr, alphabet, injected, gold, estimated)
+  }
+
+  private def addLabels (m: TObjectDoubleHashMap[String], skip: String,
+                         alphabet: LabelAlphabet) {
+    val iter = m.iterator
+    while (iter.hasNext) {
+      iter.advance
+      if (iter.key != skip)
+        alphabet.addLabel(iter.key)
+    }
+  }
+
+  private def sum (m: TObjectDoubleHashMap[String], skip: String): Double = {
+    var total = 0.0
+    val iter = m.iterator
+    while (iter.hasNext) {
+      iter.advance
+      if (iter.key != skip)
+        total += iter.value
+    }
+    total
+  }
+
+  // Load the labels of m but skip into acc, divided by denom if it is
+  // positive.
+  private def load (m: TObjectDoubleHashMap[String], skip: String, denom: Double,
+                    alphabet: LabelAlphabet, acc: LabelAccumulator) {
+    acc.clear
+    val iter = m.iterator
+    while (iter.hasNext) {
+      iter.advance
+      if (iter.key != skip) {
+        val score = if (denom > 0) iter.value / denom else iter.value
+        if (score != 0)
+          acc.put(alphabet.getLabelId(iter.key), score)
+      }
+    }
+  }
+
+}
@@ -0,0 +1,241 @@
+package upenn.junto.graph
+
+import java.io.{BufferedOutputStream, ByteArrayOutputStream, FileOutputStream, OutputStream}
+import java.util.concurrent.{ArrayBlockingQueue, Callable, ExecutionException, Executors, Future, ThreadFactory}
+import java.util.zip.GZIPOutputStream
+import gnu.trove.map.hash.TObjectDoubleHashMap
+import upenn.junto.util.TopK
+import scala.collection.mutable.Queue
+
+/**
+ * Writes the vertex records of GraphIo.saveEstimatedScores:
+ *
+ *   name TAB gold TAB injected TAB estimated TAB isTestNode TAB mrr
+ *
+ * where each label map is written as "label score" pairs by decreasing
+ * score (ties in map order), as CollectionUtil.Map2String does.
+ *
+ * The vertices are split into chunks which numThreads workers format
+ * in parallel, straight into reusable byte buffers, while the calling
+ * thread writes the chunks out in vertex order; only a bounded number
+ * of chunks is in flight. With gzip, each worker also compresses its
+ * chunk into a gzip member of its own: the concatenated members form a
+ * valid gzip file, which gunzip and GZIPInputStream read as one stream.
+ * With topKLabels < Integer.MAX_VALUE, only the topKLabels highest
+ * scoring estimated labels of each vertex are written. The estimated
+ * labels are those of the vertices of a graph, or those of a run, read
+ * from its LabelState.
+ */
+object ScoreWriter {
+
+  val Delim = '\t'
+
+  // number of vertices in a chunk
+  val ChunkSize = 16384
+
+  // MRR totals over the test vertices
+  class Summary (val mrrSum: Double, val correct: Int, val total: Int)
+
+  def write (graph: Graph, outputFile: String, numThreads: Int,
+             gzip: Boolean, topKLabels: Int): Summary = {
+    val vertices = graph.vertices.values.toArray(new Array[Vertex](0))
+    write(vertices, vi => vertices(vi).estimatedLabels, outputFile, numThreads, gzip, topKLabels)
+  }
+
+  def write (labels: LabelState, outputFile: String, numThreads: Int,
+             gzip: Boolean, topKLabels: Int): Summary =
+    write(labels.csr.vertices, vi => labels.toMap(labels.estimated, vi),
+          outputFile, numThreads, gzip, topKLabels)
+
+  // estimated(vi) gives the estimated labels of vertices(vi)
+  private def write (vertices: Array[Vertex], estimated: Int => TObjectDoubleHashMap[String],
+                     outputFile: String, numThreads: Int,
+                     gzip: Boolean, topKLabels: Int): Summary = {
+    val numChunks = (vertices.length + ChunkSize - 1) / ChunkSize
+    val window = 2 * math.max(1, numThreads)
+
+    // the buffers of the chunks in flight, recycled once written
+    val buffers = new ArrayBlockingQueue[ChunkBuffer](window)
+    for (i <- 0 until window)
+      buffers.add(new ChunkBuffer)
+
+    val executor = Executors.newFixedThreadPool(math.max(1, numThreads), new ThreadFactory {
+      def newThread (r: Runnable) = {
+        val t = new Thread(r, "score-writer")
+        t.setDaemon(true)
+        t
+      }
+    })
+
+    val out = new BufferedOutputStream(new FileOutputStream(outputFile), 1 << 16)
+    var mrrSum = 0.0
+    var correct = 0
+    var total = 0
+    try {
+      val inFlight = new Queue[Future[ChunkBuffer]]
+      var next = 0
+      while (next < numChunks || inFlight.nonEmpty) {
+        while (next < numChunks && inFlight.size < window) {
+          val from = next * ChunkSize
+          val to = math.min(vertices.length, from + ChunkSize)
+          val buf = buffers.take
+          inFlight.enqueue(executor.submit(new Callable[ChunkBuffer] {
+            def call = {
+              buf.format(vertices, estimated, from, to, topKLabels)
+              if (gzip)
+                buf.compress
+              buf
+            }
+          }))
+          next += 1
+        }
+
+        val buf =
+          try {
+            inFlight.dequeue.get
+          } catch {
+            case e: ExecutionException => throw e.getCause
+          }
+        buf.writeTo(out, gzip)
+        mrrSum += buf.mrrSum
+        correct += buf.correct
+        total += buf.total
+        buffers.add(buf)
+      }
+    } finally {
+      executor.shutdownNow
+      out.close
+    }
+
+    // an empty gzip file still needs a header
+    if (gzip && numChunks == 0)
+      new GZIPOutputStream(new FileOutputStream(outputFile)).close
+
+    new Summary(mrrSum, correct, total)
+  }
+
+  // Formatted (and possibly compressed) records of a chunk, along with
+  // the scratch space needed to produce them.
+  private class ChunkBuffer {
+    val text = new RecordBuffer
+    val compressed = new RecordBuffer
+    var mrrSum = 0.0
+    var correct = 0
+    var total = 0
+
+    private var keys = new Array[String](16)
+    private var scores = new Array[Double](16)
+    private var order = new Array[Int](16)
+
+    def format (vertices: Array[Vertex], estimated: Int => TObjectDoubleHashMap[String],
+                from: Int, to: Int, topKLabels: Int) {
+      text.reset
+      mrrSum = 0.0
+      correct = 0
+      total = 0
+
+      var vi = from
+      while (vi < to) {
+        val v = vertices(vi)
+        val estimatedLabels = estimated(vi)
+        val mrr = v.GetMRR(estimatedLabels)
+        if (v.isTestNode) {
+          total += 1
+          mrrSum += mrr
+          if (mrr == 1.0)
+            correct += 1
+        }
+
+        text.putString(v.name)
+        text.put(Delim)
+        putMap(v.goldLabels, Integer.MAX_VALUE)
+        text.put(Delim)
+        putMap(v.injectedLabels, Integer.MAX_VALUE)
+        text.put(Delim)
+        putMap(estimatedLabels, topKLabels)
+        text.put(Delim)
+        text.putString(if (v.isTestNode) "true" else "false")
+        text.put(Delim)
+        text.putString(java.lang.Double.toString(mrr))
+        text.put('\n')
+        vi += 1
+      }
+    }
+
+    // the labels of m by decreasing score; with k < Integer.MAX_VALUE,
+    // only the (at most) k highest scoring ones with a positive score
+    private def putMap (m: TObjectDoubleHashMap[String], k: Int) {
+      val n = m.size
+      if (keys.length < n) {
+        keys = new Array[String](2 * n)
+        scores = new Array[Double](2 * n)
+        order = new Array[Int](2 * n)
+      }
+      val iter = m.iterator
+      var i = 0
+      while (iter.hasNext) {
+        iter.advance
+        keys(i) = iter.key
+        scores(i) = iter.value
+        i += 1
+      }
+
+      val count =
+        if (k < Integer.MAX_VALUE) TopK.Select(scores, null, n, k, order)
+        else { TopK.Rank(scores, null, n, order); n }
+
+      // the pairs are separated by a space, as Map2String does
+      i = 0
+      while (i < count) {
+        if (i > 0)
+          text.put(' ')
+        text.putString(keys(order(i)))
+        text.put(' ')
+        text.putString(java.lang.Double.toString(scores(order(i))))
+        i += 1
+      }
+    }
+
+    def compress () {
+      compressed.reset
+      val gz = new GZIPOutputStream(compressed, 1 << 16)
+      text.writeTo(gz)
+      gz.close
+    }
+
+    def writeTo (out: OutputStream, gzip: Boolean) {
+      if (gzip) compressed.writeTo(out) else text.writeTo(out)
+    }
+  }
+
+  // Growable byte buffer, reused across chunks, with a UTF-8 encoder
+  // that writes ASCII strings byte by byte.
+  private class RecordBuffer extends ByteArrayOutputStream(1 << 16) {
+
+    // an ASCII character
+    def put (c: Char) {
+      ensure(1)
+      buf(count) = c.toByte
+      count += 1
+    }
+
+    def putString (s: String) {
+      val len = s.length
+      ensure(len)
+      var i = 0
+      while (i < len && s.charAt(i) < 0x80) {
+        buf(count) = s.charAt(i).toByte
+        count += 1
+        i += 1
+      }
+      if (i < len)
+        write(s.substring(i).getBytes("UTF-8"))
+    }
+
+    private def ensure (extra: Int) {
+      if (count + extra > buf.length)
+        buf = java.util.Arrays.copyOf(buf, math.max(2 * buf.length, count + extra))
+    }
+  }
+
+}
@@ -11,6 +11,7 @@ import upenn.junto.util.RyanFeatureVector
 import upenn.junto.util.Constants
 import upenn.junto.util.CollectionUtil
 import upenn.junto.util.ProbUtil
+import upenn.junto.util.TopK
 
 import scala.collection.JavaConversions._
 
@@ -155,10 +156,7 @@ class Vertex (val name: String) {
   //
   // The method returns true of the node has zero entropy neighborhood.
   def CalculateRWProbabilities (beta: Double): Boolean = {
-    val neighborClone = new TObjectDoubleHashMap[String](neighbors)
-    ProbUtil.Normalize(neighborClone)
-		
-    val ent = GetNeighborhoodEntropy(neighborClone)
+    val ent = GetNeighborhoodEntropy
     var cv = math.log(beta) / math.log(beta + ent)
 		
     var isZeroEntropy = false
@@ -190,6 +188,65 @@ class Vertex (val name: String) {
     isTransitionNormalized = true
   }
 
+  // Keep only the k neighbors with the highest weights. Ties are broken
+  // as CollectionUtil.ReverseSortMap breaks them in a fresh copy of the
+  // neighbors, which is only made when there is something to remove.
+  def KeepTopKNeighbors (k: Int) {
+    val n = neighbors.size
+    if (n <= k)
+      return
+
+    val copy = new TObjectDoubleHashMap[String]
+    var nIter = neighbors.iterator
+    while (nIter.hasNext) {
+      nIter.advance
+      copy.put(nIter.key, nIter.value)
+    }
+
+    val names = new Array[String](n)
+    val weights = new Array[Double](n)
+    nIter = copy.iterator
+    var i = 0
+    while (nIter.hasNext) {
+      nIter.advance
+      names(i) = nIter.key
+      weights(i) = nIter.value
+      i += 1
+    }
+
+    // remove everything after the top-K neighbors, in rank order
+    val order = new Array[Int](n)
+    TopK.Rank(weights, null, n, order)
+    i = k
+    while (i < n) {
+      neighbors.remove(names(order(i)))
+      i += 1
+    }
+  }
+
+  // entropy of the normalized neighbor weights (see ProbUtil.Normalize),
+  // without normalizing them in place. Both sums run over a fresh copy of
+  // the neighbors, as ProbUtil.Normalize did on the copy it was given:
+  // its iteration order may differ from theirs, and so the rounding.
+  def GetNeighborhoodEntropy: Double = {
+    val copy = new TObjectDoubleHashMap[String](neighbors)
+    var denom = 0.0
+    var ni = copy.iterator
+    while (ni.hasNext) {
+      ni.advance
+      denom += ni.value
+    }
+
+    var entropy = 0.0
+    ni = copy.iterator
+    while (ni.hasNext) {
+      ni.advance
+      val p = if (denom > 0) ni.value / denom else ni.value
+      entropy += -1 * p * Math.log(p) / Math.log(2)
+    }
+    entropy
+  }
+
   def GetNeighborhoodEntropy (map: TObjectDoubleHashMap[String]) = {
     var entropy = 0.0
     val ni = map.iterator
@@ -213,12 +270,43 @@ class Vertex (val name: String) {
   }
 	
 	
-  def GetMRR: Double = {
-    val sortedMap: List[ObjectDoublePair] = 
-      CollectionUtil.ReverseSortMap(estimatedLabels).toList.filter(_.GetLabel != Constants.GetDummyLabel)
-    val goldRank = sortedMap.indexWhere(pair => goldLabels.containsKey(pair.GetLabel))
-    if (goldRank > -1) 1.0/(goldRank + 1.0)
-    else 0.0
+  // Reciprocal rank of the highest ranked gold label, ranking the
+  // estimated labels (minus the dummy label) from large to small score,
+  // ties in iteration order. The rank is found by counting the labels
+  // which outrank the best gold label, without sorting.
+  def GetMRR: Double = GetMRR(estimatedLabels)
+
+  // the same for other estimated labels, e.g. those of a run which are
+  // not written back into the vertex (see LabelState)
+  def GetMRR (estimated: TObjectDoubleHashMap[String]): Double = {
+    val dummy = Constants.GetDummyLabel
+    var best = -1
+    var bestScore = 0.0
+    var pos = 0
+    var iter = estimated.iterator
+    while (iter.hasNext) {
+      iter.advance
+      if (iter.key != dummy && goldLabels.containsKey(iter.key) &&
+          (best < 0 || iter.value > bestScore)) {
+        best = pos
+        bestScore = iter.value
+      }
+      pos += 1
+    }
+
+    if (best < 0) return 0.0
+
+    var rank = 1
+    pos = 0
+    iter = estimated.iterator
+    while (iter.hasNext) {
+      iter.advance
+      if (iter.key != dummy &&
+          (iter.value > bestScore || (iter.value == bestScore && pos < best)))
+        rank += 1
+      pos += 1
+    }
+    1.0 / rank
   }
 
   